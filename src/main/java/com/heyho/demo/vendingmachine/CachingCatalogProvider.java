@@ -0,0 +1,242 @@
+package com.heyho.demo.vendingmachine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+
+/**
+ * A CachingCatalogProvider sits in front of a slow CatalogProvider and remembers what it
+ * returned, so that restocking many machines with the same catalog asks the source once.
+ * <p>
+ * The cache holds at most {@code maxEntries} catalogs and drops the least recently used
+ * one to make room.  An entry older than {@code ttlMillis} is stale and is fetched again
+ * the next time it's asked for.  When several catalogs are asked for at once, the ones
+ * that aren't cached go to the source in a single {@code retrieveGoods(Collection)} call,
+ * and {@code refresh()} does the same for every stale entry.
+ * <p>
+ * Lookups that hit the cache only hold its lock briefly; fetches from the source are made
+ * without it.  A catalog is only fetched by one caller at a time: anyone else who asks for
+ * it while the fetch is going on waits for that fetch instead of going to the source too.
+ */
+public class CachingCatalogProvider implements CatalogProvider {
+	private final CatalogProvider source;
+	private final int maxEntries;
+	private final long ttlMillis;
+	private final LongSupplier clock;
+	private final LinkedHashMap<String, Entry> cache;
+
+	// Fetches from the source that haven't finished yet.  Guarded by the cache's lock.
+	private final Map<String, CompletableFuture<List<ItemRow>>> inFlight = new HashMap<>();
+
+	private long hits;
+	private long misses;
+
+	// A catalog and when it was fetched
+	static class Entry {
+		final List<ItemRow> goods;
+		final long fetched;
+
+		Entry(List<ItemRow> goods, long fetched) {
+			this.goods = goods;
+			this.fetched = fetched;
+		}
+	}
+
+	/**
+	 * @param source      Where the catalogs really come from
+	 * @param maxEntries  Most catalogs to keep
+	 * @param ttlMillis   How long a catalog stays fresh, in milliseconds
+	 */
+	public CachingCatalogProvider(CatalogProvider source, int maxEntries, long ttlMillis) {
+		this(source, maxEntries, ttlMillis, System::currentTimeMillis);
+	}
+
+	// The clock can be replaced for testing
+	CachingCatalogProvider(CatalogProvider source, int maxEntries, long ttlMillis, LongSupplier clock) {
+		if (maxEntries < 1)
+			throw new IllegalArgumentException("Cache must hold at least one catalog");
+		this.source = source;
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+		this.clock = clock;
+		this.cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > CachingCatalogProvider.this.maxEntries;
+			}
+		};
+	}
+
+	@Override
+	public List<ItemRow> retrieveGoods(String catalog) {
+		Map<String, CompletableFuture<List<ItemRow>>> mine = new HashMap<>();
+		Map<String, CompletableFuture<List<ItemRow>>> theirs = new HashMap<>();
+		synchronized (cache) {
+			Entry entry = cache.get(catalog);
+			if (entry != null && isFresh(entry)) {
+				hits++;
+				return entry.goods;
+			}
+			misses++;
+			claim(catalog, mine, theirs);
+		}
+
+		if (!mine.isEmpty())
+			fetch(mine, () -> Collections.singletonMap(catalog, source.retrieveGoods(catalog)));
+		return await(mine.isEmpty() ? theirs.get(catalog) : mine.get(catalog));
+	}
+
+	@Override
+	public Map<String, List<ItemRow>> retrieveGoods(Collection<String> catalogs) {
+		Map<String, List<ItemRow>> result = new LinkedHashMap<>();
+		Map<String, CompletableFuture<List<ItemRow>>> mine = new LinkedHashMap<>();
+		Map<String, CompletableFuture<List<ItemRow>>> theirs = new LinkedHashMap<>();
+		synchronized (cache) {
+			for (String catalog: catalogs) {
+				if (result.containsKey(catalog) || mine.containsKey(catalog) || theirs.containsKey(catalog))
+					continue;
+				Entry entry = cache.get(catalog);
+				if (entry != null && isFresh(entry)) {
+					hits++;
+					result.put(catalog, entry.goods);
+				} else {
+					misses++;
+					claim(catalog, mine, theirs);
+				}
+			}
+		}
+
+		if (!mine.isEmpty())
+			result.putAll(fetch(mine, () -> source.retrieveGoods(mine.keySet())));
+		for (Map.Entry<String, CompletableFuture<List<ItemRow>>> e: theirs.entrySet())
+			result.put(e.getKey(), await(e.getValue()));
+
+		// put them back in the order asked for
+		Map<String, List<ItemRow>> ordered = new LinkedHashMap<>();
+		for (String catalog: catalogs)
+			ordered.put(catalog, result.getOrDefault(catalog, Collections.emptyList()));
+		return ordered;
+	}
+
+	/**
+	 * Fetches every stale catalog in the cache again, in one call to the source.  Catalogs
+	 * that someone else is already fetching are left to them.
+	 *
+	 * @return  How many catalogs were refreshed
+	 */
+	public int refresh() {
+		Map<String, CompletableFuture<List<ItemRow>>> mine = new LinkedHashMap<>();
+		Map<String, CompletableFuture<List<ItemRow>>> theirs = new LinkedHashMap<>();
+		synchronized (cache) {
+			List<String> stale = new ArrayList<>();
+			for (Map.Entry<String, Entry> e: cache.entrySet()) {
+				if (!isFresh(e.getValue()))
+					stale.add(e.getKey());
+			}
+			for (String catalog: stale)
+				claim(catalog, mine, theirs);
+		}
+		if (!mine.isEmpty())
+			fetch(mine, () -> source.retrieveGoods(mine.keySet()));
+		return mine.size();
+	}
+
+	/**
+	 * Forgets everything in the cache.
+	 */
+	public void clear() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	public long getHits() {
+		synchronized (cache) {
+			return hits;
+		}
+	}
+
+	public long getMisses() {
+		synchronized (cache) {
+			return misses;
+		}
+	}
+
+	boolean isFresh(Entry entry) {
+		return clock.getAsLong() - entry.fetched < ttlMillis;
+	}
+
+	// Puts a catalog in {@code mine} with a new fetch if nobody is fetching it yet, or in
+	// {@code theirs} with the fetch that's already going on.  Call with the cache's lock.
+	private void claim(String catalog, Map<String, CompletableFuture<List<ItemRow>>> mine,
+			Map<String, CompletableFuture<List<ItemRow>>> theirs) {
+		CompletableFuture<List<ItemRow>> fetch = inFlight.get(catalog);
+		if (fetch != null) {
+			theirs.put(catalog, fetch);
+		} else {
+			fetch = new CompletableFuture<>();
+			inFlight.put(catalog, fetch);
+			mine.put(catalog, fetch);
+		}
+	}
+
+	// Gets the claimed catalogs from the source, caches them, and hands them to anyone
+	// waiting.  If the source fails, the waiters get the same exception.
+	private Map<String, List<ItemRow>> fetch(Map<String, CompletableFuture<List<ItemRow>>> claimed,
+			Supplier<Map<String, List<ItemRow>>> fromSource) {
+		Map<String, List<ItemRow>> fetched;
+		try {
+			fetched = fromSource.get();
+		} catch (RuntimeException | Error e) {
+			synchronized (cache) {
+				for (Map.Entry<String, CompletableFuture<List<ItemRow>>> c: claimed.entrySet())
+					inFlight.remove(c.getKey(), c.getValue());
+			}
+			for (CompletableFuture<List<ItemRow>> fetch: claimed.values())
+				fetch.completeExceptionally(e);
+			throw e;
+		}
+
+		long now = clock.getAsLong();
+		synchronized (cache) {
+			for (Map.Entry<String, CompletableFuture<List<ItemRow>>> c: claimed.entrySet()) {
+				if (fetched.containsKey(c.getKey()))
+					cache.put(c.getKey(), new Entry(fetched.get(c.getKey()), now));
+				inFlight.remove(c.getKey(), c.getValue());
+			}
+		}
+		for (Map.Entry<String, CompletableFuture<List<ItemRow>>> c: claimed.entrySet())
+			c.getValue().complete(fetched.getOrDefault(c.getKey(), Collections.emptyList()));
+		return fetched;
+	}
+
+	// Waits for a fetch, passing on whatever it threw
+	private static List<ItemRow> await(CompletableFuture<List<ItemRow>> fetch) {
+		try {
+			return fetch.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw e;
+		}
+	}
+}
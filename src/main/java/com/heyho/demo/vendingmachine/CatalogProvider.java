@@ -0,0 +1,42 @@
+package com.heyho.demo.vendingmachine;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A CatalogProvider supplies the goods to restock a machine with, keyed by the name of
+ * the machine's catalog (its planogram: what goes in which row, at what price).  This is
+ * where {@code VendingMachine.retrieveRestockGoods()} gets its data when a provider is set.
+ * <p>
+ * Providers may be slow, so callers that need several catalogs should ask for them all at
+ * once with {@code retrieveGoods(Collection)}.  Lists and ItemRows returned by a provider
+ * may be shared and must not be modified.  Failures to reach the data are reported with
+ * unchecked exceptions, such as {@code UncheckedIOException}.
+ */
+public interface CatalogProvider {
+
+	/**
+	 * Looks up one catalog.
+	 *
+	 * @param catalog  Name of the catalog
+	 * @return         The ItemRows to restock with, empty if there is no such catalog
+	 */
+	List<ItemRow> retrieveGoods(String catalog);
+
+	/**
+	 * Looks up several catalogs.  Providers that can fetch in bulk should override this;
+	 * by default the catalogs are fetched one at a time.
+	 *
+	 * @param catalogs  Names of the catalogs
+	 * @return          The ItemRows for each catalog, keyed by name
+	 */
+	default Map<String, List<ItemRow>> retrieveGoods(Collection<String> catalogs) {
+		Map<String, List<ItemRow>> result = new LinkedHashMap<>();
+		for (String catalog: catalogs)
+			result.put(catalog, retrieveGoods(catalog));
+		return result;
+	}
+}
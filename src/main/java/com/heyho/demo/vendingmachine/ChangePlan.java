@@ -0,0 +1,182 @@
+package com.heyho.demo.vendingmachine;
+
+import java.util.Arrays;
+import java.util.Map;
+
+
+/**
+ * A ChangePlan says how many of each Coin to hand back for an amount of change.  Plans
+ * are worked out from a read-only look at the coins available and don't change anything,
+ * so they can be made speculatively, thrown away, or made while other work goes on.  A
+ * plan takes effect only when it is committed with {@code VendingMachine.commitChange()},
+ * which checks that the purchase buffer is still the one the plan was made for and that
+ * the coins are still there.
+ * <p>
+ * The choice of coins is the same as it always was: as many of the largest coin as
+ * possible, then the next one down, backing off one coin at a time until the amount
+ * is met exactly.
+ */
+public final class ChangePlan {
+	private final int amount;
+	private final int coins[];
+	private final int purchase[];
+	private final boolean possible;
+	private final int candidates;
+
+	private ChangePlan(int amount, int[] coins, int[] purchase, boolean possible, int candidates) {
+		this.amount = amount;
+		this.coins = coins;
+		this.purchase = purchase;
+		this.possible = possible;
+		this.candidates = candidates;
+	}
+
+	/**
+	 * Works out change from the coins in a machine and its purchase buffer, both of which
+	 * can be used.  Neither Map is modified.  The plan remembers the purchase buffer, since
+	 * the change is owed against that credit and no other.
+	 *
+	 * @param cents     Amount of change to make, in cents
+	 * @param machine   Coins in the machine
+	 * @param purchase  Coins in the purchase buffer
+	 * @return          The plan.  If no combination of coins works, {@code isPossible()}
+	 * is false.
+	 */
+	public static ChangePlan plan(int cents, Map<Coin, Integer> machine, Map<Coin, Integer> purchase) {
+		return plan(cents, machine, purchase, new Search());
+	}
+
+	// Same as plan(), but searches with a Search the caller keeps reusing.  Only one thread
+	// at a time can use a Search.
+	static ChangePlan plan(int cents, Map<Coin, Integer> machine, Map<Coin, Integer> purchase,
+			Search search) {
+		int planned[] = new int[Coin.values.length];
+		for (Coin coin: Coin.values) {
+			planned[coin.ordinal()] = purchase.getOrDefault(coin, 0);
+			search.available[coin.ordinal()] = machine.getOrDefault(coin, 0) + planned[coin.ordinal()];
+		}
+		boolean found = search.search(cents);
+		return new ChangePlan(cents, found ? search.used.clone() : new int[Coin.values.length],
+				planned, found, search.candidates);
+	}
+
+	/**
+	 * @return  The amount of change this plan is for
+	 */
+	public double getAmount() {
+		return amount / 100.0;
+	}
+
+	public int getAmountCents() {
+		return amount;
+	}
+
+	/**
+	 * @return  True if the coins add up to the amount.  False if the coins that were
+	 * available couldn't make it.
+	 */
+	public boolean isPossible() {
+		return possible;
+	}
+
+	/**
+	 * @param coin  A kind of Coin
+	 * @return      How many of it to give back
+	 */
+	public int getCount(Coin coin) {
+		return coins[coin.ordinal()];
+	}
+
+	/**
+	 * @return  How many coin counts were tried while looking for the plan
+	 */
+	public int getCandidates() {
+		return candidates;
+	}
+
+	/**
+	 * Checks that the purchase buffer is the same as when the plan was made and that
+	 * there are still enough coins to carry out the plan.  A coin inserted or a refund
+	 * since then changes the credit the change is owed against, so the plan is stale.
+	 *
+	 * @param machine   Coins in the machine
+	 * @param purchase  Coins in the purchase buffer
+	 * @return          True if the plan can be committed against them
+	 */
+	public boolean fits(Map<Coin, Integer> machine, Map<Coin, Integer> purchase) {
+		if (!possible)
+			return false;
+		for (Coin coin: Coin.values) {
+			int purchased = purchase.getOrDefault(coin, 0);
+			if (purchased != this.purchase[coin.ordinal()])
+				return false;
+			if (coins[coin.ordinal()] > machine.getOrDefault(coin, 0) + purchased)
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		if (!possible)
+			return "Impossible";
+		StringBuilder sb = new StringBuilder();
+		for (Coin coin: Coin.values) {
+			if (coins[coin.ordinal()] > 0)
+				sb.append(coins[coin.ordinal()]).append(' ').append(coin).append(", ");
+		}
+		return sb.length() == 0 ? "None" : sb.toString();
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (31 * (31 * amount + Arrays.hashCode(coins)) + Arrays.hashCode(purchase)) + (possible ? 1 : 0);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		ChangePlan other = (ChangePlan) obj;
+		return amount == other.amount && possible == other.possible
+				&& Arrays.equals(coins, other.coins) && Arrays.equals(purchase, other.purchase);
+	}
+
+
+	// The search itself, on int arrays indexed by Coin ordinal.  It can be reused, so code
+	// that makes a lot of change (like {@code MachineStateStore}) doesn't have to allocate.
+	static final class Search {
+		final int available[] = new int[Coin.values.length];
+		final int used[] = new int[Coin.values.length];
+		int candidates;
+
+		// Looks for change for {@code cents} out of {@code available}.  On success
+		// {@code used} holds the coins to give back.
+		boolean search(int cents) {
+			Arrays.fill(used, 0);
+			candidates = 0;
+			return search(cents, Coin.values.length-1);
+		}
+
+		private boolean search(int remaining, int ord) {
+			if (remaining == 0)
+				return true;
+			if (ord < 0)
+				return false;
+
+			// use as many of this coin as fit, then fewer and fewer, down to none
+			int value = Coin.values[ord].getCents();
+			int max = Math.min(remaining / value, available[ord]);
+			for (int i=max; i>=0; i--) {
+				candidates++;
+				if (search(remaining - i*value, ord-1)) {
+					used[ord] = i;
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
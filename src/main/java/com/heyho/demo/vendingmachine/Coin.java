@@ -14,16 +14,22 @@ public enum Coin {
 	DOLLARCOIN(1.00);
 	
 	private double value;
+	private int cents;
 	public static final Coin values[] = values();
 	   
 	private Coin(double value) {
 		this.value = value;
+		this.cents = (int) Math.round(value*100);
 	}
 	
 	public double getValue() {
 		return this.value;
 	}
 	
+	public int getCents() {
+		return this.cents;
+	}
+	
 	public static boolean isCoin(String str) {
 		return Coin.toCoin(str) != null;
 	}
@@ -34,12 +40,14 @@ public enum Coin {
 		return null;
 	}
 	
+	// Looks the name up directly rather than through valueOf(), so that input which
+	// isn't a Coin doesn't cost an upper-cased copy and a thrown exception.
 	public static Coin toCoin(String text) {
-		try {
-			return Coin.valueOf(text.toUpperCase());
-		} catch (IllegalArgumentException e) {
-			return null;
+		for (Coin coin: values) {
+			if (coin.name().equalsIgnoreCase(text))
+				return coin;
 		}
+		return null;
 	}
 		
 	public static final Coin MAX = Coin.toCoin(values.length-1);
@@ -0,0 +1,159 @@
+package com.heyho.demo.vendingmachine;
+
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * A CommandParser works out what a line of input to {@code mainLoop()} means: a Coin,
+ * one of the keywords, or the label of a row in the machine.
+ * <p>
+ * Coin names and keywords go into a trie once, and the labels of the machine's current
+ * contents go into a second trie that is only rebuilt when the machine publishes a new
+ * version of its contents.  A line is classified by walking both tries in a single pass,
+ * ignoring case and surrounding whitespace, without making any new Strings or throwing
+ * anything.  What was matched is left in the parser, so a parser should stay with one
+ * caller and be reused for each line.
+ */
+public class CommandParser {
+
+	/**
+	 * The kinds of input the machine understands.
+	 */
+	public enum Command {
+		COIN, REFUND, RESTOCK, QUIT, LABEL, UNKNOWN
+	}
+
+	// One node of a trie.  Children are kept in small parallel arrays since there are
+	// rarely more than a few of them.
+	static class Node {
+		char keys[] = new char[0];
+		Node children[] = new Node[0];
+		Command command;
+		Coin coin;
+		ItemRow row;
+
+		Node child(char key) {
+			for (int i=0; i<keys.length; i++) {
+				if (keys[i] == key)
+					return children[i];
+			}
+			return null;
+		}
+
+		Node addChild(char key) {
+			Node node = child(key);
+			if (node == null) {
+				node = new Node();
+				int n = keys.length;
+				keys = Arrays.copyOf(keys, n+1);
+				children = Arrays.copyOf(children, n+1);
+				keys[n] = key;
+				children[n] = node;
+			}
+			return node;
+		}
+	}
+
+	// The fixed vocabulary is the same for every parser
+	static final Node KEYWORDS = new Node();
+	static {
+		for (Coin coin: Coin.values)
+			insert(KEYWORDS, coin.name(), Command.COIN).coin = coin;
+		insert(KEYWORDS, "refund", Command.REFUND);
+		insert(KEYWORDS, "restock", Command.RESTOCK);
+		insert(KEYWORDS, "quit", Command.QUIT);
+	}
+
+	private Node labels = new Node();
+	private List<ItemRow> labelsVersion;
+	private Coin coin;
+	private ItemRow row;
+
+	static Node insert(Node root, String word, Command command) {
+		Node node = root;
+		for (int i=0; i<word.length(); i++)
+			node = node.addChild(fold(word.charAt(i)));
+		node.command = command;
+		return node;
+	}
+
+	// Case folding that doesn't need a new String
+	static char fold(char c) {
+		if (c >= 'A' && c <= 'Z')
+			return (char) (c + ('a' - 'A'));
+		if (c < 128)
+			return c;
+		return Character.toLowerCase(c);
+	}
+
+	/**
+	 * Works out what {@code line} asks the machine to do.  Coins and keywords take
+	 * precedence over labels.
+	 *
+	 * @param line      A line of input
+	 * @param contents  The version of the machine's contents that labels are looked up in
+	 * @return          What kind of command {@code line} is.  For {@code COIN} and
+	 * {@code LABEL} the Coin or ItemRow is available from {@code getCoin()} or {@code getRow()}.
+	 */
+	public Command parse(CharSequence line, List<ItemRow> contents) {
+		if (contents != labelsVersion)
+			indexLabels(contents);
+		coin = null;
+		row = null;
+
+		int start = 0;
+		int end = line.length();
+		while (start < end && line.charAt(start) <= ' ')
+			start++;
+		while (end > start && line.charAt(end-1) <= ' ')
+			end--;
+		if (start == end)
+			return Command.UNKNOWN;
+
+		Node keyword = KEYWORDS;
+		Node label = labels;
+		for (int i=start; i<end && (keyword != null || label != null); i++) {
+			char c = fold(line.charAt(i));
+			if (keyword != null)
+				keyword = keyword.child(c);
+			if (label != null)
+				label = label.child(c);
+		}
+
+		if (keyword != null && keyword.command != null) {
+			coin = keyword.coin;
+			return keyword.command;
+		}
+		if (label != null && label.command != null) {
+			row = label.row;
+			return Command.LABEL;
+		}
+		return Command.UNKNOWN;
+	}
+
+	/**
+	 * @return  The Coin matched by the last {@code parse()}, or null
+	 */
+	public Coin getCoin() {
+		return coin;
+	}
+
+	/**
+	 * @return  The row whose label was matched by the last {@code parse()}, or null
+	 */
+	public ItemRow getRow() {
+		return row;
+	}
+
+	// Rebuilds the label trie for a new version of the contents
+	void indexLabels(List<ItemRow> contents) {
+		Node root = new Node();
+		if (contents != null) {
+			for (ItemRow ir: contents)
+				insert(root, ir.getLabel(), Command.LABEL).row = ir;
+		}
+		labels = root;
+		labelsVersion = contents;
+	}
+}
@@ -0,0 +1,61 @@
+package com.heyho.demo.vendingmachine;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * A FileCatalogProvider reads catalogs from a directory, one file per catalog, named
+ * {@code <catalog>.csv}.  It stands in for the catalog and pricing service.
+ * <p>
+ * Each line of a file is one row of the machine:
+ * <pre>
+ *   label,name,type,price,count
+ * </pre>
+ * Blank lines and lines starting with '#' are ignored.  The file is read on every call;
+ * wrap the provider in a {@link CachingCatalogProvider} to avoid that.
+ */
+public class FileCatalogProvider implements CatalogProvider {
+	private final Path directory;
+
+	public FileCatalogProvider(Path directory) {
+		this.directory = directory;
+	}
+
+	@Override
+	public List<ItemRow> retrieveGoods(String catalog) {
+		Path file = directory.resolve(catalog + ".csv");
+		if (!Files.isRegularFile(file))
+			return Collections.emptyList();
+
+		List<ItemRow> goods = new ArrayList<>();
+		try {
+			int lineNumber = 0;
+			for (String line: Files.readAllLines(file, StandardCharsets.UTF_8)) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+
+				String fields[] = line.split(",");
+				if (fields.length != 5)
+					throw new IllegalArgumentException(file + ":" + lineNumber + ": expected label,name,type,price,count");
+				try {
+					goods.add(new ItemRow(fields[1].trim(), fields[2].trim(), Double.parseDouble(fields[3].trim()),
+							Integer.parseInt(fields[4].trim()), fields[0].trim()));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException(file + ":" + lineNumber + ": bad price or count", e);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Can't read catalog " + file, e);
+		}
+		return Collections.unmodifiableList(goods);
+	}
+}
@@ -0,0 +1,162 @@
+package com.heyho.demo.vendingmachine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+
+/**
+ * A GoodsIndex keeps the rows in a machine sorted by price, overall and within each type
+ * of Item, so questions like "cheapest Peanut item" or "everything under $1.00" don't need
+ * a scan of the whole machine.
+ * <p>
+ * The machine updates the index whenever it publishes a new version of its contents, so
+ * the index only ever holds rows that are in stock.  Types are matched ignoring case.
+ * Within a price, rows come back in label order.  The index does its own locking, and
+ * queries return copies that the caller may keep.
+ */
+public class GoodsIndex {
+	// price in cents -> label -> row
+	private final TreeMap<Integer, TreeMap<String, ItemRow>> byPrice = new TreeMap<>();
+	// type -> price in cents -> label -> row
+	private final Map<String, TreeMap<Integer, TreeMap<String, ItemRow>>> byType = new TreeMap<>();
+
+	static int cents(double price) {
+		return (int) Math.round(price*100);
+	}
+
+	static String typeKey(String type) {
+		return type == null ? "" : type.toLowerCase();
+	}
+
+	/**
+	 * Brings the index from one version of the machine's contents to the next.  Rows are
+	 * never changed once published, so a row that is in both versions is the same object
+	 * and is left alone.
+	 *
+	 * @param before  The version the index currently reflects
+	 * @param after   The version being published
+	 */
+	synchronized void update(Collection<ItemRow> before, Collection<ItemRow> after) {
+		Set<ItemRow> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+		kept.addAll(after);
+		for (ItemRow ir: before) {
+			if (!kept.remove(ir))
+				remove(ir);
+		}
+		// what's left in kept is new
+		for (ItemRow ir: kept)
+			add(ir);
+	}
+
+	/**
+	 * Replaces a single row, which is all a sale changes.
+	 *
+	 * @param before  The row as it was
+	 * @param after   The row as it is now, or null if it sold out
+	 */
+	synchronized void update(ItemRow before, ItemRow after) {
+		remove(before);
+		if (after != null)
+			add(after);
+	}
+
+	private void add(ItemRow ir) {
+		int price = cents(ir.getItem().getPrice());
+		byPrice.computeIfAbsent(price, p -> new TreeMap<>()).put(ir.getLabel(), ir);
+		byType.computeIfAbsent(typeKey(ir.getItem().getType()), t -> new TreeMap<>())
+			.computeIfAbsent(price, p -> new TreeMap<>()).put(ir.getLabel(), ir);
+	}
+
+	private void remove(ItemRow ir) {
+		int price = cents(ir.getItem().getPrice());
+		removeFrom(byPrice, price, ir);
+
+		String type = typeKey(ir.getItem().getType());
+		TreeMap<Integer, TreeMap<String, ItemRow>> prices = byType.get(type);
+		if (prices != null) {
+			removeFrom(prices, price, ir);
+			if (prices.isEmpty())
+				byType.remove(type);
+		}
+	}
+
+	private static void removeFrom(TreeMap<Integer, TreeMap<String, ItemRow>> prices, int price, ItemRow ir) {
+		TreeMap<String, ItemRow> rows = prices.get(price);
+		if (rows != null && rows.remove(ir.getLabel(), ir) && rows.isEmpty())
+			prices.remove(price);
+	}
+
+	private static List<ItemRow> flatten(Map<Integer, TreeMap<String, ItemRow>> prices) {
+		List<ItemRow> result = new ArrayList<>();
+		for (TreeMap<String, ItemRow> rows: prices.values())
+			result.addAll(rows.values());
+		return result;
+	}
+
+	/**
+	 * Finds the cheapest item of a type.  If several rows share the lowest price, the one
+	 * with the first label wins.
+	 *
+	 * @param type  Type of Item, such as "Peanut"
+	 * @return      The row, or null if there's nothing of that type in the machine
+	 */
+	public synchronized ItemRow cheapest(String type) {
+		TreeMap<Integer, TreeMap<String, ItemRow>> prices = byType.get(typeKey(type));
+		if (prices == null)
+			return null;
+		return prices.firstEntry().getValue().firstEntry().getValue();
+	}
+
+	/**
+	 * Finds everything that costs less than a price.
+	 *
+	 * @param price  The price, exclusive
+	 * @return       Matching rows, cheapest first
+	 */
+	public synchronized List<ItemRow> under(double price) {
+		return flatten(byPrice.headMap(cents(price), false));
+	}
+
+	/**
+	 * Finds everything in a price range.
+	 *
+	 * @param low   The lowest price, inclusive
+	 * @param high  The highest price, inclusive
+	 * @return      Matching rows, cheapest first
+	 */
+	public synchronized List<ItemRow> between(double low, double high) {
+		int from = cents(low);
+		int to = cents(high);
+		if (from > to)
+			return new ArrayList<>();
+		return flatten(byPrice.subMap(from, true, to, true));
+	}
+
+	/**
+	 * Finds every row holding a type of Item.
+	 *
+	 * @param type  Type of Item
+	 * @return      Matching rows, cheapest first
+	 */
+	public synchronized List<ItemRow> ofType(String type) {
+		NavigableMap<Integer, TreeMap<String, ItemRow>> prices = byType.get(typeKey(type));
+		if (prices == null)
+			return new ArrayList<>();
+		return flatten(prices);
+	}
+
+	/**
+	 * @return  The types of Item in the machine, lower-cased and sorted
+	 */
+	public synchronized Set<String> getTypes() {
+		return new TreeSet<>(byType.keySet());
+	}
+}
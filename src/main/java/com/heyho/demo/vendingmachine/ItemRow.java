@@ -6,11 +6,15 @@ package com.heyho.demo.vendingmachine;
  * with what label to file it under.  You cannot store Items of different types
  * under he same label.  The only method of interest is {@code vendItem()} which is called
  * to actually dispense an item from some row.
+ * <p>
+ * ItemRows can't be changed once they're made.  The machine publishes its contents
+ * copy-on-write and hands its rows out to anyone who asks, so a new count means a new
+ * ItemRow.
  */
 public class ItemRow implements Comparable<ItemRow> {
-	Item item;
-	int count = 0;
-	String label;
+	private final Item item;
+	private final int count;
+	private final String label;
 	
 	ItemRow(String name, String type, double price,
 				int count, String label) {
@@ -19,6 +23,14 @@ public class ItemRow implements Comparable<ItemRow> {
 		this.label = label;
 	}
 	
+	// Copies {@code other} with a new count.  The machine uses this to make new versions
+	// of its contents without touching the rows in the old version.
+	ItemRow(ItemRow other, int count) {
+		this.item = other.item;
+		this.count = count;
+		this.label = other.label;
+	}
+	
 	public Item getItem() {
 		return item;
 	}
@@ -28,16 +40,6 @@ public class ItemRow implements Comparable<ItemRow> {
 	public String getLabel() {
 		return label;
 	}
-	
-	public void setItem(Item item) {
-		this.item = item;
-	}
-	public void setCount(int count) {
-		this.count = count;
-	}
-	public void setLabel(String label) {
-		this.label = label;
-	}
 
 	@Override
 	public String toString() {
@@ -0,0 +1,471 @@
+package com.heyho.demo.vendingmachine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * A MachineStateStore holds the state of a large number of simulated machines outside
+ * the Java heap, for capacity-planning runs where a {@link VendingMachine} per machine
+ * would leave the garbage collector doing most of the work.
+ * <p>
+ * Each machine gets a fixed-size slot of ints in a direct ByteBuffer:
+ * <pre>
+ *   coins in machine, by Coin ordinal
+ *   coins in purchase, by Coin ordinal
+ *   number of rows in use
+ *   rowsPerMachine x (label id, product id, price in cents, count)
+ * </pre>
+ * Slots are spread over as many buffers ("segments") as it takes to stay under the size
+ * limit of a single buffer.  Labels and products (Items) are interned once per store and
+ * referred to by id.
+ * Money is kept in integer cents.  The whole store can be dumped to a file and loaded
+ * back with one bulk copy per segment.
+ * <p>
+ * Vending and change making follow the rules of {@code VendingMachine}, using the same
+ * {@link ChangePlan} search, but nothing is printed.  A store is not thread safe; give
+ * each simulation thread its own machines and its own store, or synchronize around it.
+ */
+public class MachineStateStore {
+	static final int MAGIC = 0x534D5356;		// "VSMS"
+	static final int COINS = Coin.values.length;
+	static final int MACHINE_COINS = 0;
+	static final int PURCHASE_COINS = COINS;
+	static final int ROWS_USED = 2*COINS;
+	static final int ROWS = ROWS_USED + 1;
+	static final int ROW_LABEL = 0;
+	static final int ROW_PRODUCT = 1;
+	static final int ROW_PRICE = 2;
+	static final int ROW_COUNT = 3;
+	static final int ROW_INTS = 4;
+	static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+	private final int machines;
+	private final int rowsPerMachine;
+	private final int machineInts;
+	private final int machinesPerSegment;
+	private final ByteBuffer segments[];
+
+	private final List<String> labels = new ArrayList<>();
+	private final Map<String, Integer> labelIds = new HashMap<>();
+	private final List<Item> products = new ArrayList<>();
+	private final Map<Item, Integer> productIds = new HashMap<>();
+
+	// reused for change making, so that vending doesn't allocate
+	private final ChangePlan.Search search = new ChangePlan.Search();
+
+	/**
+	 * Allocates an empty store.
+	 *
+	 * @param machines        How many machines to hold
+	 * @param rowsPerMachine  How many rows each machine has room for
+	 */
+	public MachineStateStore(int machines, int rowsPerMachine) {
+		if (machines < 0 || rowsPerMachine < 0)
+			throw new IllegalArgumentException("Negative store size");
+		this.machines = machines;
+		this.rowsPerMachine = rowsPerMachine;
+		this.machineInts = ROWS + rowsPerMachine*ROW_INTS;
+		this.machinesPerSegment = Math.max(1, Math.min(machines, MAX_SEGMENT_BYTES / (4*machineInts)));
+
+		int count = (machines + machinesPerSegment - 1) / machinesPerSegment;
+		segments = new ByteBuffer[count];
+		for (int s=0; s<count; s++) {
+			int inSegment = Math.min(machinesPerSegment, machines - s*machinesPerSegment);
+			segments[s] = ByteBuffer.allocateDirect(4*machineInts*inSegment)
+					.order(ByteOrder.nativeOrder());
+		}
+	}
+
+	public int getMachines() {
+		return machines;
+	}
+
+	public int getRowsPerMachine() {
+		return rowsPerMachine;
+	}
+
+	/**
+	 * Looks up the id for a label.  Labels are matched ignoring case, like they are in the
+	 * machine.  Only {@code restock()} adds labels, so looking one up never grows the store.
+	 *
+	 * @param label  The label
+	 * @return       Its id in this store, or -1 if no machine has ever been stocked with it
+	 */
+	public int labelId(String label) {
+		Integer id = labelIds.get(label.toLowerCase());
+		return id == null ? -1 : id;
+	}
+
+	// Looks up the id for a label, adding it if it's new
+	int internLabel(String label) {
+		String key = label.toLowerCase();
+		Integer id = labelIds.get(key);
+		if (id == null) {
+			id = labels.size();
+			labels.add(label);
+			labelIds.put(key, id);
+		}
+		return id;
+	}
+
+	public String getLabel(int labelId) {
+		return labels.get(labelId);
+	}
+
+	public int getLabelCount() {
+		return labels.size();
+	}
+
+	// Looks up the id for an Item, adding it if it's new.  Items are the same product if
+	// they're equal, just as in the machine.
+	int productId(Item item) {
+		Integer id = productIds.get(item);
+		if (id == null) {
+			id = products.size();
+			products.add(item);
+			productIds.put(item, id);
+		}
+		return id;
+	}
+
+	/**
+	 * @param machine  Which machine
+	 * @param labelId  Id of the label
+	 * @return         The Item sold under the label, or null if the label isn't in the machine
+	 */
+	public Item getItem(int machine, int labelId) {
+		int r = findRow(machine, labelId);
+		return r < 0 ? null : products.get(get(machine, ROWS + r*ROW_INTS + ROW_PRODUCT));
+	}
+
+	// Reading and writing the ints in a machine's slot
+	int get(int machine, int field) {
+		return segments[machine / machinesPerSegment]
+				.getInt(4*((machine % machinesPerSegment)*machineInts + field));
+	}
+
+	void put(int machine, int field, int value) {
+		segments[machine / machinesPerSegment]
+				.putInt(4*((machine % machinesPerSegment)*machineInts + field), value);
+	}
+
+	// Returns the row number holding {@code labelId} in a machine, or -1
+	int findRow(int machine, int labelId) {
+		int used = get(machine, ROWS_USED);
+		for (int r=0; r<used; r++) {
+			if (get(machine, ROWS + r*ROW_INTS + ROW_LABEL) == labelId)
+				return r;
+		}
+		return -1;
+	}
+
+	/**
+	 * Restocks one machine.  As with {@code VendingMachine.restockMachine()} the goods add
+	 * and the money replaces, and goods whose label already holds a different Item are
+	 * rejected.  If the new labels don't all fit, nothing changes.
+	 *
+	 * @param machine  Which machine
+	 * @param goods    ItemRows to add, or null
+	 * @param money    How many of each Coin the machine should hold, or null
+	 * @return         How many of the goods were rejected
+	 * @throws IllegalStateException  If the machine doesn't have room for the new labels
+	 */
+	public int restock(int machine, List<ItemRow> goods, Map<Coin, Integer> money) {
+		int rejected = 0;
+		if (goods != null) {
+			// make sure everything fits before changing anything
+			Set<String> added = new HashSet<>();
+			for (ItemRow ir: goods) {
+				int id = labelId(ir.getLabel());
+				if (id < 0 || findRow(machine, id) < 0)
+					added.add(ir.getLabel().toLowerCase());
+			}
+			if (get(machine, ROWS_USED) + added.size() > rowsPerMachine)
+				throw new IllegalStateException("No room in machine " + machine + " for " + added.size() + " new rows");
+
+			for (ItemRow ir: goods)
+				rejected += addRow(machine, ir) ? 0 : 1;
+		}
+
+		if (money != null) {
+			for (Coin coin: Coin.values)
+				put(machine, MACHINE_COINS + coin.ordinal(), money.getOrDefault(coin, 0));
+		}
+		return rejected;
+	}
+
+	// Adds one ItemRow to a machine that has room for it.  Returns false if the label
+	// already holds a different Item.
+	private boolean addRow(int machine, ItemRow ir) {
+		int id = internLabel(ir.getLabel());
+		int product = productId(ir.getItem());
+		int r = findRow(machine, id);
+		if (r < 0) {
+			r = get(machine, ROWS_USED);
+			put(machine, ROWS + r*ROW_INTS + ROW_LABEL, id);
+			put(machine, ROWS + r*ROW_INTS + ROW_PRODUCT, product);
+			put(machine, ROWS + r*ROW_INTS + ROW_PRICE, (int) Math.round(ir.getItem().getPrice()*100));
+			put(machine, ROWS + r*ROW_INTS + ROW_COUNT, ir.getCount());
+			put(machine, ROWS_USED, r+1);
+		} else if (get(machine, ROWS + r*ROW_INTS + ROW_PRODUCT) == product) {
+			int count = ROWS + r*ROW_INTS + ROW_COUNT;
+			put(machine, count, get(machine, count) + ir.getCount());
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Puts a Coin into a machine's purchase buffer.
+	 *
+	 * @param machine  Which machine
+	 * @param coin     The Coin
+	 * @return         The credit now in the purchase buffer, in cents
+	 */
+	public int insertCoin(int machine, Coin coin) {
+		int field = PURCHASE_COINS + coin.ordinal();
+		put(machine, field, get(machine, field) + 1);
+		return getCredit(machine);
+	}
+
+	/**
+	 * @param machine  Which machine
+	 * @return         The credit in the machine's purchase buffer, in cents
+	 */
+	public int getCredit(int machine) {
+		int cents = 0;
+		for (Coin coin: Coin.values)
+			cents += coin.getCents() * get(machine, PURCHASE_COINS + coin.ordinal());
+		return cents;
+	}
+
+	/**
+	 * @param machine  Which machine
+	 * @return         The value of the coins in the machine, not counting the purchase
+	 * buffer, in cents
+	 */
+	public int getValueInMachine(int machine) {
+		int cents = 0;
+		for (Coin coin: Coin.values)
+			cents += coin.getCents() * get(machine, MACHINE_COINS + coin.ordinal());
+		return cents;
+	}
+
+	public int getCoinsInMachine(int machine, Coin coin) {
+		return get(machine, MACHINE_COINS + coin.ordinal());
+	}
+
+	/**
+	 * @param machine  Which machine
+	 * @param labelId  Id of the label, from {@code labelId()}
+	 * @return         How many are left under the label, 0 if none
+	 */
+	public int getCount(int machine, int labelId) {
+		int r = findRow(machine, labelId);
+		return r < 0 ? 0 : get(machine, ROWS + r*ROW_INTS + ROW_COUNT);
+	}
+
+	/**
+	 * Empties a machine's purchase buffer.
+	 *
+	 * @param machine  Which machine
+	 * @return         The amount refunded, in cents
+	 */
+	public int refund(int machine) {
+		int cents = getCredit(machine);
+		for (Coin coin: Coin.values)
+			put(machine, PURCHASE_COINS + coin.ordinal(), 0);
+		return cents;
+	}
+
+	/**
+	 * Buys the item under a label with the credit in the purchase buffer, the same way
+	 * {@code VendingMachine.doLabel()} does.  On success the change is taken from the
+	 * machine, the purchase buffer goes into the machine, and the row's count drops by
+	 * one.  A row that runs out is removed.  Otherwise nothing changes.
+	 *
+	 * @param machine  Which machine
+	 * @param labelId  Id of the label, from {@code labelId()}
+	 * @return         {@code VENDED}, {@code NO_SUCH_LABEL}, {@code INSUFFICIENT_FUNDS}
+	 * or {@code CANNOT_MAKE_CHANGE}, the same outcomes {@code VendingMachine.doLabel()}
+	 * reports
+	 */
+	public VendResult.Outcome vend(int machine, int labelId) {
+		int r = findRow(machine, labelId);
+		if (r < 0)
+			return VendResult.Outcome.NO_SUCH_LABEL;
+
+		int change = getCredit(machine) - get(machine, ROWS + r*ROW_INTS + ROW_PRICE);
+		if (change < 0)
+			return VendResult.Outcome.INSUFFICIENT_FUNDS;
+
+		for (int c=0; c<COINS; c++)
+			search.available[c] = get(machine, MACHINE_COINS + c) + get(machine, PURCHASE_COINS + c);
+		if (!search.search(change))
+			return VendResult.Outcome.CANNOT_MAKE_CHANGE;
+
+		for (int c=0; c<COINS; c++) {
+			put(machine, MACHINE_COINS + c, search.available[c] - search.used[c]);
+			put(machine, PURCHASE_COINS + c, 0);
+		}
+
+		int count = get(machine, ROWS + r*ROW_INTS + ROW_COUNT) - 1;
+		if (count > 0) {
+			put(machine, ROWS + r*ROW_INTS + ROW_COUNT, count);
+		} else {
+			// keep the rows packed by moving the last one into the hole
+			int last = get(machine, ROWS_USED) - 1;
+			for (int f=0; f<ROW_INTS; f++)
+				put(machine, ROWS + r*ROW_INTS + f, get(machine, ROWS + last*ROW_INTS + f));
+			put(machine, ROWS_USED, last);
+		}
+		return VendResult.Outcome.VENDED;
+	}
+
+	/**
+	 * Writes the whole store to a file: a small header with the labels and products, then
+	 * every segment as it sits in memory.  An Item's name or type may be null; it's
+	 * written with a length of -1.
+	 *
+	 * @param path  Where to write
+	 * @throws IOException  If the file can't be written
+	 */
+	public void dump(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			List<byte[]> names = new ArrayList<>();
+			int size = 6*4;
+			for (String label: labels) {
+				byte[] name = label.getBytes(StandardCharsets.UTF_8);
+				names.add(name);
+				size += 4 + name.length;
+			}
+			List<byte[]> productNames = new ArrayList<>();
+			size += 4;
+			for (Item item: products) {
+				byte[] name = utf8(item.getName());
+				byte[] type = utf8(item.getType());
+				productNames.add(name);
+				productNames.add(type);
+				size += 4 + (name == null ? 0 : name.length) + 4 + (type == null ? 0 : type.length) + 8;
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+			header.putInt(MAGIC).putInt(COINS).putInt(machines).putInt(rowsPerMachine)
+				.putInt(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 1 : 0)
+				.putInt(names.size());
+			for (byte[] name: names)
+				header.putInt(name.length).put(name);
+			header.putInt(products.size());
+			for (int p=0; p<products.size(); p++) {
+				putString(header, productNames.get(2*p));
+				putString(header, productNames.get(2*p + 1));
+				header.putDouble(products.get(p).getPrice());
+			}
+			header.flip();
+
+			ByteBuffer all[] = new ByteBuffer[segments.length + 1];
+			all[0] = header;
+			for (int s=0; s<segments.length; s++)
+				all[s+1] = (ByteBuffer) segments[s].duplicate().clear();
+			while (all[all.length-1].hasRemaining())
+				channel.write(all);
+		}
+	}
+
+	/**
+	 * Reads back a store written by {@code dump()} on a machine with the same byte order.
+	 *
+	 * @param path  Where to read from
+	 * @return      The store
+	 * @throws IOException  If the file can't be read or isn't a compatible dump
+	 */
+	public static MachineStateStore load(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer fixed = ByteBuffer.allocate(6*4).order(ByteOrder.nativeOrder());
+			readFully(channel, fixed);
+			if (fixed.getInt() != MAGIC || fixed.getInt() != COINS)
+				throw new IOException("Not a compatible machine state dump: " + path);
+			int machines = fixed.getInt();
+			int rowsPerMachine = fixed.getInt();
+			if (fixed.getInt() != (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 1 : 0))
+				throw new IOException("Machine state dump has the wrong byte order: " + path);
+			int labelCount = fixed.getInt();
+
+			MachineStateStore store = new MachineStateStore(machines, rowsPerMachine);
+			ByteBuffer length = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder());
+			for (int l=0; l<labelCount; l++) {
+				length.clear();
+				readFully(channel, length);
+				ByteBuffer name = ByteBuffer.allocate(length.getInt());
+				readFully(channel, name);
+				store.internLabel(new String(name.array(), StandardCharsets.UTF_8));
+			}
+
+			length.clear();
+			readFully(channel, length);
+			int productCount = length.getInt();
+			ByteBuffer price = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+			for (int p=0; p<productCount; p++) {
+				String name = readString(channel, length);
+				String type = readString(channel, length);
+				price.clear();
+				readFully(channel, price);
+				store.productId(new Item(name, type, price.getDouble()));
+			}
+
+			for (ByteBuffer segment: store.segments)
+				readFully(channel, (ByteBuffer) segment.duplicate().clear());
+			return store;
+		}
+	}
+
+	// A String as UTF-8, or null for null
+	static byte[] utf8(String string) {
+		return string == null ? null : string.getBytes(StandardCharsets.UTF_8);
+	}
+
+	// Writes a length and the bytes, or a length of -1 for null
+	static void putString(ByteBuffer buffer, byte[] bytes) {
+		if (bytes == null)
+			buffer.putInt(-1);
+		else
+			buffer.putInt(bytes.length).put(bytes);
+	}
+
+	// Reads a length and then that many bytes of UTF-8, or null for a length of -1
+	static String readString(FileChannel channel, ByteBuffer length) throws IOException {
+		length.clear();
+		readFully(channel, length);
+		int size = length.getInt();
+		if (size == -1)
+			return null;
+		if (size < 0)
+			throw new IOException("Machine state dump is corrupt");
+		ByteBuffer bytes = ByteBuffer.allocate(size);
+		readFully(channel, bytes);
+		return new String(bytes.array(), StandardCharsets.UTF_8);
+	}
+
+	// Fills {@code buffer} from {@code channel} and flips it for reading
+	static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0)
+				throw new IOException("Machine state dump is truncated");
+		}
+		buffer.flip();
+	}
+}
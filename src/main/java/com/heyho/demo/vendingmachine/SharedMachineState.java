@@ -0,0 +1,331 @@
+package com.heyho.demo.vendingmachine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A SharedMachineState is a fixed-layout, memory-mapped copy of a machine's coin
+ * inventory, purchase buffer and row counts, so that other processes (the display,
+ * payment or telemetry JVMs) can read the state without asking the machine for it.
+ * <p>
+ * There is one writer, the {@link VendingMachine} the region is attached to, and any
+ * number of readers.  They coordinate with a sequence lock: the writer bumps the
+ * sequence to an odd number, writes, then bumps it to the next even number.  A reader
+ * copies the region and keeps the copy only if it saw the same even sequence before
+ * and after.  Readers never block the writer and never take a lock.
+ * <p>
+ * Layout (all ints and longs are little-endian):
+ * <pre>
+ *   0  int   magic
+ *   4  int   number of coins
+ *   8  long  sequence
+ *  16  int[] coins in machine, by Coin ordinal
+ *  ..  int[] coins in purchase, by Coin ordinal
+ *  ..  int   number of rows in use
+ *  ..  rows  MAX_ROWS x (LABEL_BYTES of ASCII label, int count)
+ * </pre>
+ * Labels are stored whole, so a machine can only be shared if every label is printable
+ * ASCII of at most {@code LABEL_BYTES} characters and it has at most {@code MAX_ROWS}
+ * rows.  Anything else is rejected rather than cut down, since a reader would then get
+ * a wrong count with no way of knowing.
+ */
+public class SharedMachineState implements Closeable {
+	static final int MAGIC = 0x314D5356;		// "VSM1"
+	public static final int MAX_ROWS = 64;
+	public static final int LABEL_BYTES = 8;
+
+	static final int MAGIC_OFFSET = 0;
+	static final int COINS_OFFSET = 4;
+	static final int SEQUENCE_OFFSET = 8;
+	static final int MACHINE_COINS_OFFSET = 16;
+	static final int PURCHASE_COINS_OFFSET = MACHINE_COINS_OFFSET + 4*Coin.values.length;
+	static final int ROWS_USED_OFFSET = PURCHASE_COINS_OFFSET + 4*Coin.values.length;
+	static final int ROWS_OFFSET = ROWS_USED_OFFSET + 4;
+	static final int ROW_BYTES = LABEL_BYTES + 4;
+	public static final int SIZE = ROWS_OFFSET + MAX_ROWS*ROW_BYTES;
+
+	// Plain buffer access can be reordered by the compiler and the CPU, so the sequence
+	// lock needs explicit fences.
+
+	// Keeps the stores before it from moving after the stores that follow it.
+	private static void storeFence() {
+		VarHandle.storeStoreFence();
+	}
+
+	// Keeps the loads before it from moving after the loads that follow it.
+	private static void loadFence() {
+		VarHandle.loadLoadFence();
+	}
+
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final boolean writable;
+
+	private SharedMachineState(FileChannel channel, MappedByteBuffer buffer, boolean writable) {
+		this.channel = channel;
+		this.buffer = buffer;
+		this.writable = writable;
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Creates (or takes over) the region at {@code path} for writing.  Only one process
+	 * should have a region open for writing at a time.  Whatever an earlier writer left
+	 * in the file is wiped.
+	 *
+	 * @param path  File backing the region
+	 * @return      A writable region, initialized to an empty machine
+	 * @throws IOException  If the file can't be opened or mapped
+	 */
+	public static SharedMachineState create(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		SharedMachineState state = new SharedMachineState(channel,
+				channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE), true);
+		// mark it in progress while the old contents are cleared, then empty and consistent
+		state.buffer.putLong(SEQUENCE_OFFSET, 1L);
+		storeFence();
+		for (int offset=MACHINE_COINS_OFFSET; offset<SIZE; offset++)
+			state.buffer.put(offset, (byte) 0);
+		state.buffer.putInt(COINS_OFFSET, Coin.values.length);
+		storeFence();
+		state.buffer.putLong(SEQUENCE_OFFSET, 0L);
+		state.buffer.putInt(MAGIC_OFFSET, MAGIC);
+		return state;
+	}
+
+	/**
+	 * Opens an existing region for reading.
+	 *
+	 * @param path  File backing the region
+	 * @return      A read-only view of the region
+	 * @throws IOException  If the file can't be mapped or wasn't written by a compatible machine
+	 */
+	public static SharedMachineState open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		if (channel.size() < SIZE) {
+			channel.close();
+			throw new IOException("Shared machine state too small: " + path);
+		}
+		SharedMachineState state = new SharedMachineState(channel,
+				channel.map(FileChannel.MapMode.READ_ONLY, 0, SIZE), false);
+		if (state.buffer.getInt(MAGIC_OFFSET) != MAGIC
+				|| state.buffer.getInt(COINS_OFFSET) != Coin.values.length) {
+			channel.close();
+			throw new IOException("Not a compatible shared machine state: " + path);
+		}
+		return state;
+	}
+
+	/**
+	 * Checks that a machine's contents fit in a region: no more than {@code MAX_ROWS} rows,
+	 * and every label printable ASCII of no more than {@code LABEL_BYTES} characters.
+	 *
+	 * @param rows  The machine's contents, or null
+	 * @throws IllegalArgumentException  If they don't fit
+	 */
+	public static void checkRows(List<ItemRow> rows) {
+		if (rows == null)
+			return;
+		if (rows.size() > MAX_ROWS)
+			throw new IllegalArgumentException("Too many rows to share: " + rows.size());
+		for (ItemRow row: rows) {
+			String label = row.getLabel();
+			if (label == null || label.isEmpty() || label.length() > LABEL_BYTES)
+				throw new IllegalArgumentException("Label can't be shared: " + label);
+			for (int i=0; i<label.length(); i++) {
+				if (label.charAt(i) < ' ' || label.charAt(i) > '~')
+					throw new IllegalArgumentException("Label can't be shared: " + label);
+			}
+		}
+	}
+
+	/**
+	 * Copies the machine's state into the region.  Called by the writer after every
+	 * change.
+	 *
+	 * @param machine   Coins in the machine
+	 * @param purchase  Coins in the purchase buffer
+	 * @param rows      The machine's contents
+	 * @throws IllegalArgumentException  If the rows don't pass {@code checkRows()}.  The
+	 * region is left as it was.
+	 */
+	public void publish(Map<Coin, Integer> machine, Map<Coin, Integer> purchase, List<ItemRow> rows) {
+		if (!writable)
+			throw new IllegalStateException("Shared machine state is read-only");
+		checkRows(rows);
+
+		long seq = buffer.getLong(SEQUENCE_OFFSET);
+		buffer.putLong(SEQUENCE_OFFSET, seq+1);	// odd: write in progress
+		storeFence();
+
+		for (Coin coin: Coin.values) {
+			buffer.putInt(MACHINE_COINS_OFFSET + 4*coin.ordinal(),
+					machine == null ? 0 : machine.getOrDefault(coin, 0));
+			buffer.putInt(PURCHASE_COINS_OFFSET + 4*coin.ordinal(),
+					purchase == null ? 0 : purchase.getOrDefault(coin, 0));
+		}
+
+		int used = rows == null ? 0 : rows.size();
+		buffer.putInt(ROWS_USED_OFFSET, used);
+		for (int r=0; r<used; r++) {
+			ItemRow row = rows.get(r);
+			int offset = ROWS_OFFSET + r*ROW_BYTES;
+			byte[] label = row.getLabel().getBytes(StandardCharsets.US_ASCII);
+			for (int b=0; b<LABEL_BYTES; b++)
+				buffer.put(offset + b, b < label.length ? label[b] : 0);
+			buffer.putInt(offset + LABEL_BYTES, row.getCount());
+		}
+
+		storeFence();
+		buffer.putLong(SEQUENCE_OFFSET, seq+2);	// even: consistent again
+	}
+
+	/**
+	 * Takes a consistent copy of the region, retrying while the writer is in the
+	 * middle of a publish.
+	 *
+	 * @return  The latest consistent state
+	 */
+	public Snapshot snapshot() {
+		Snapshot snap = new Snapshot();
+		while (!tryRead(snap))
+			Thread.yield();
+		return snap;
+	}
+
+	/**
+	 * Tries once to read the region into {@code into}, so a reader that polls can
+	 * reuse one Snapshot.
+	 *
+	 * @param into  Where to put the state
+	 * @return      True if {@code into} now holds a consistent state, false if the
+	 * writer got in the way
+	 */
+	public boolean tryRead(Snapshot into) {
+		long before = buffer.getLong(SEQUENCE_OFFSET);
+		if ((before & 1) != 0)
+			return false;
+		loadFence();
+
+		for (int c=0; c<Coin.values.length; c++) {
+			into.machine[c] = buffer.getInt(MACHINE_COINS_OFFSET + 4*c);
+			into.purchase[c] = buffer.getInt(PURCHASE_COINS_OFFSET + 4*c);
+		}
+		int used = Math.min(Math.max(buffer.getInt(ROWS_USED_OFFSET), 0), MAX_ROWS);
+		for (int r=0; r<used; r++) {
+			int offset = ROWS_OFFSET + r*ROW_BYTES;
+			int len = 0;
+			for (; len<LABEL_BYTES; len++) {
+				into.labelScratch[len] = buffer.get(offset + len);
+				if (into.labelScratch[len] == 0)
+					break;
+			}
+			if (into.labels[r] == null || !into.sameLabel(r, len))
+				into.labels[r] = new String(into.labelScratch, 0, len, StandardCharsets.US_ASCII);
+			into.counts[r] = buffer.getInt(offset + LABEL_BYTES);
+		}
+		into.rows = used;
+		into.sequence = before;
+
+		loadFence();
+		return buffer.getLong(SEQUENCE_OFFSET) == before;
+	}
+
+	/**
+	 * Tells how many times the writer has published.
+	 *
+	 * @return The number of completed publishes
+	 */
+	public long getVersion() {
+		return buffer.getLong(SEQUENCE_OFFSET) >>> 1;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+
+	/**
+	 * A Snapshot is one consistent reading of a SharedMachineState.  Snapshots are
+	 * plain copies and can be kept for as long as the caller likes.
+	 */
+	public static class Snapshot {
+		final int machine[] = new int[Coin.values.length];
+		final int purchase[] = new int[Coin.values.length];
+		final String labels[] = new String[MAX_ROWS];
+		final int counts[] = new int[MAX_ROWS];
+		final byte labelScratch[] = new byte[LABEL_BYTES];
+		int rows;
+		long sequence;
+
+		public int getCoinsInMachine(Coin coin) {
+			return machine[coin.ordinal()];
+		}
+
+		public int getCoinsInPurchase(Coin coin) {
+			return purchase[coin.ordinal()];
+		}
+
+		/**
+		 * Credit the customer currently has in the purchase buffer.
+		 *
+		 * @return The value of the purchase buffer
+		 */
+		public double getCredit() {
+			long cents = 0;
+			for (Coin coin: Coin.values)
+				cents += Math.round(coin.getValue()*100) * purchase[coin.ordinal()];
+			return cents / 100.0;
+		}
+
+		public int getRowCount() {
+			return rows;
+		}
+
+		public String getLabel(int row) {
+			return labels[row];
+		}
+
+		/**
+		 * How many items are left under a label.
+		 *
+		 * @param label  Label to look up, ignoring case
+		 * @return       The count, or 0 if the label isn't in the machine
+		 */
+		public int getCount(String label) {
+			for (int r=0; r<rows; r++) {
+				if (labels[r].equalsIgnoreCase(label))
+					return counts[r];
+			}
+			return 0;
+		}
+
+		public long getVersion() {
+			return sequence >>> 1;
+		}
+
+		// saves allocating a new String when the label in a row didn't change
+		boolean sameLabel(int row, int len) {
+			String label = labels[row];
+			if (label.length() != len)
+				return false;
+			for (int i=0; i<len; i++) {
+				if (label.charAt(i) != labelScratch[i])
+					return false;
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.heyho.demo.vendingmachine;
+
+
+/**
+ * A VendResult tells what happened when a customer put in a coin, chose a label or asked
+ * for a refund.  The machine fills in one that the caller passes in, so a caller that
+ * handles a lot of transactions can keep reusing the same VendResult instead of sorting
+ * through boxed numbers and {@code instanceof} checks.
+ * <p>
+ * What the amount means depends on the outcome: the price of the Item that was vended,
+ * how much more money is needed, the credit after a coin, or the amount refunded.
+ * <p>
+ * Reusing a VendResult saves the result and the boxing, not every allocation.  Because
+ * the machine's state is copy-on-write, a sale still makes a JFR event, a ChangePlan, new
+ * Maps of coins and a new version of the contents, and a coin makes a new purchase Map.
+ * The console output allocates too.  The change search itself reuses the machine's
+ * scratch space.
+ */
+public class VendResult {
+
+	/**
+	 * The ways a transaction can end.
+	 */
+	public enum Outcome {
+		/** The Item was vended and any change given */
+		VENDED,
+		/** Not enough credit; the amount is what's still needed */
+		INSUFFICIENT_FUNDS,
+		/** The machine couldn't make change; the amount is the change it needed */
+		CANNOT_MAKE_CHANGE,
+		/** Nothing in the machine has that label */
+		NO_SUCH_LABEL,
+		/** A coin was added; the amount is the credit now in the machine */
+		CREDITED,
+		/** The purchase buffer was returned; the amount is how much */
+		REFUNDED
+	}
+
+	private Outcome outcome;
+	private double amount;
+	private double change;
+	private Item item;
+
+	// Filled in by the machine
+	VendResult set(Outcome outcome, double amount, double change, Item item) {
+		this.outcome = outcome;
+		this.amount = amount;
+		this.change = change;
+		this.item = item;
+		return this;
+	}
+
+	public Outcome getOutcome() {
+		return outcome;
+	}
+
+	public double getAmount() {
+		return amount;
+	}
+
+	/**
+	 * @return  The change given back for a vend, or 0
+	 */
+	public double getChange() {
+		return change;
+	}
+
+	/**
+	 * @return  The Item that was vended, or null if nothing was
+	 */
+	public Item getItem() {
+		return item;
+	}
+
+	public boolean isVended() {
+		return outcome == Outcome.VENDED;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s $%.2f%s", outcome, amount, item == null ? "" : " " + item);
+	}
+}
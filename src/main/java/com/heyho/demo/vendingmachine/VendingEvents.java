@@ -0,0 +1,94 @@
+package com.heyho.demo.vendingmachine;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+/**
+ * Java Flight Recorder events for the things the machine does.  Turn them on in a
+ * recording (they're enabled by default) to see where time goes in a slow sale: a
+ * Vend event encloses the Change event for the same purchase, so the difference
+ * between them is the label lookup and console output.
+ * <p>
+ * Events cost next to nothing when no recording is running.
+ */
+final class VendingEvents {
+	static final String CATEGORY = "Vending Machine";
+
+	private VendingEvents() {
+	}
+
+	@Name("com.heyho.demo.vendingmachine.Vend")
+	@Label("Vend")
+	@Category(CATEGORY)
+	@Description("A purchase by label, from lookup through vending")
+	static class Vend extends Event {
+		@Label("Label")
+		String label;
+
+		@Label("Price")
+		double price;
+
+		@Label("Credit")
+		double credit;
+
+		@Label("Change")
+		double change;
+
+		@Label("Candidates Searched")
+		@Description("Coin counts tried while looking for change")
+		int candidates;
+
+		@Label("Outcome")
+		String outcome;
+	}
+
+	@Name("com.heyho.demo.vendingmachine.Change")
+	@Label("Make Change")
+	@Category(CATEGORY)
+	@Description("A search for change and, if found, taking it from the machine")
+	static class Change extends Event {
+		@Label("Amount")
+		double amount;
+
+		@Label("Candidates Searched")
+		@Description("Coin counts tried while looking for change")
+		int candidates;
+
+		@Label("Found")
+		boolean found;
+	}
+
+	@Name("com.heyho.demo.vendingmachine.Restock")
+	@Label("Restock")
+	@Category(CATEGORY)
+	@Description("Building and publishing a restocked version of the machine")
+	static class Restock extends Event {
+		@Label("Goods")
+		@Description("Number of ItemRows offered")
+		int goods;
+
+		@Label("Rows")
+		@Description("Number of rows in the machine afterwards")
+		int rows;
+
+		@Label("Money Replaced")
+		boolean moneyReplaced;
+
+		@Label("Rebuilt")
+		@Description("A sale got in first, so the new version had to be built again")
+		boolean rebuilt;
+	}
+
+	@Name("com.heyho.demo.vendingmachine.Refund")
+	@Label("Refund")
+	@Category(CATEGORY)
+	@Description("Returning the purchase buffer to the customer")
+	static class Refund extends Event {
+		@Label("Amount")
+		double amount;
+	}
+}
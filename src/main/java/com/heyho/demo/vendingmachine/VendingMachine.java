@@ -5,11 +5,18 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
+import com.heyho.demo.vendingmachine.CommandParser.Command;
+
 /**
 * This is a sample project that implements a vending machine-- a common coding 
 * exercise from the web.
@@ -23,8 +30,9 @@ import java.util.stream.Collectors;
 * <b>UI:</b> You can enter a kind of money, such as "quarter", or the label of an item to vend, 
 * or "refund", "restock', or "quit".
 * <p>
-* The data for the restock list is generated by {@code retrieveRestockData()}. It is currently 
-* hard-wired, but it could be made to get data from a file or database.  When making  
+* The data for the restock list is generated by {@code retrieveRestockGoods()}. It is 
+* hard-wired unless a {@link CatalogProvider} is set, such as a {@link FileCatalogProvider}
+* behind a {@link CachingCatalogProvider}.  When making  
 * change during vending, the optimal combination of coins is returned, favoring larger 
 * coins over smaller.
 * 
@@ -34,20 +42,50 @@ import java.util.stream.Collectors;
 */
 public class VendingMachine {
 
-	// These hold the machine state
-	Map<Coin, Integer> coinsInMachine;		
-	Map<Coin, Integer> coinsInPurchase;
-	List<ItemRow> machineContents;
+	// These hold the machine state.  The contents and both Maps of coins are copy-on-write:
+	// a published List, its ItemRows, or a published Map of coins are never changed, each
+	// change publishes a new version instead, so readers can use whatever version they
+	// picked up without locking.  The Lists are unmodifiable and ItemRows are immutable,
+	// so rows handed out by listGoods(), the parser or the index can't change either.
+	volatile Map<Coin, Integer> coinsInMachine;		
+	volatile Map<Coin, Integer> coinsInPurchase;
+	volatile List<ItemRow> machineContents;
+
+	// Held by anything that publishes a new version of the contents or changes the coins
+	// in the machine.  Readers never take it.
+	final Object stateLock = new Object();
+
+	// Rows by type and price, kept in step with each published version of the contents
+	final GoodsIndex goodsIndex = new GoodsIndex();
+
+	// Scratch space for the change search in takeChange(), which only uses it while
+	// holding stateLock
+	final ChangePlan.Search changeSearch = new ChangePlan.Search();
+
+	// How many times restockMachine() builds a new version without the lock before it
+	// gives up and builds one while holding it
+	static final int RESTOCK_ATTEMPTS = 3;
+
+	// Optional memory-mapped copy of the state for other processes to read
+	SharedMachineState sharedState;
+
+	// Where restock goods come from, if not the hard-wired list
+	CatalogProvider catalogProvider;
+	String catalog;
 
 	/**
-	 * Generates a List of items to restock the machine with.
+	 * Generates a List of items to restock the machine with.  If a CatalogProvider has been
+	 * set with {@code setCatalog()}, the items come from the machine's catalog; otherwise 
+	 * a hard-wired list is used.
 	 * <p>
 	 * This is up-top for accessibility.
 	 * 
 	 * @return List of items for restocking
 	 */
 	public List<ItemRow> retrieveRestockGoods() {
-		// normally we would get the restock data from a file or service
+		if (catalogProvider != null)
+			return copyOf(catalogProvider.retrieveGoods(catalog));
+
 		return  new ArrayList<>(Arrays.asList(
 				new ItemRow("Abar", "Chocoate", 0.75, 3, "A1"),
 				new ItemRow("Bbar", "Chocoate", 1.50, 3, "A2"),
@@ -75,14 +113,86 @@ public class VendingMachine {
 		return retrieveRestockMoney(3);
 	}
 	
+	/**
+	 * Makes {@code retrieveRestockGoods()} use a catalog from a CatalogProvider instead of
+	 * the hard-wired list.
+	 * 
+	 * @param provider  Where to get catalogs, or null to go back to the hard-wired list
+	 * @param catalog   Name of this machine's catalog
+	 */
+	public void setCatalog(CatalogProvider provider, String catalog) {
+		this.catalogProvider = provider;
+		this.catalog = catalog;
+	}
+	
+	/**
+	 * Restocks a group of machines with goods from their catalogs and the default money.
+	 * The catalogs are fetched up front with one call per CatalogProvider, so machines
+	 * that share a catalog (or a caching provider) don't each wait on the source.
+	 * 
+	 * @param machines  The machines to restock
+	 */
+	public static void restockAll(Collection<VendingMachine> machines) {
+		Map<CatalogProvider, Set<String>> wanted = new IdentityHashMap<>();
+		for (VendingMachine vm: machines) {
+			if (vm.catalogProvider != null)
+				wanted.computeIfAbsent(vm.catalogProvider, p -> new LinkedHashSet<>()).add(vm.catalog);
+		}
+		Map<CatalogProvider, Map<String, List<ItemRow>>> fetched = new IdentityHashMap<>();
+		wanted.forEach((provider, catalogs) -> fetched.put(provider, provider.retrieveGoods(catalogs)));
+
+		for (VendingMachine vm: machines) {
+			List<ItemRow> goods = (vm.catalogProvider == null) ? vm.retrieveRestockGoods()
+					: copyOf(fetched.get(vm.catalogProvider).getOrDefault(vm.catalog, Collections.emptyList()));
+			vm.restockMachine(goods, vm.retrieveRestockMoney());
+		}
+	}
+	
+	// Catalogs can be shared between machines, so callers get their own ItemRows
+	static List<ItemRow> copyOf(List<ItemRow> goods) {
+		List<ItemRow> copy = new ArrayList<>(goods.size());
+		for (ItemRow ir: goods)
+			copy.add(new ItemRow(ir, ir.getCount()));
+		return copy;
+	}
+	
 	
 	public VendingMachine() {	
 		coinsInMachine = new HashMap<>();		
-		machineContents = new ArrayList<>();
+		machineContents = Collections.emptyList();
 		coinsInPurchase = new HashMap<>();
 	}
 	
 	
+	/**
+	 * Attaches a memory-mapped region that this machine will keep up to date with its
+	 * coins and row counts, so that other processes can read them lock-free.  This
+	 * machine becomes the region's only writer.
+	 * 
+	 * @param state  A region opened with {@code SharedMachineState.create()}, or null
+	 * to stop sharing
+	 * @throws IllegalArgumentException  If the contents don't fit in a region, see
+	 * {@code SharedMachineState.checkRows()}
+	 */
+	public void shareState(SharedMachineState state) {
+		synchronized (stateLock) {
+			if (state != null)
+				SharedMachineState.checkRows(machineContents);
+			sharedState = state;
+			publishState();
+		}
+	}
+
+	// Copies the current state out to the shared region, if there is one.  Called after
+	// anything that changes the coins or the contents.
+	void publishState() {
+		synchronized (stateLock) {
+			if (sharedState != null)
+				sharedState.publish(coinsInMachine, coinsInPurchase, machineContents);
+		}
+	}
+	
+	
 	// Awful little utility I had to write as penance for using doubles to 
 	// represent money.  Addition worked OK, but subtraction of doubles is unstable,
 	// so we have to do it carefully.
@@ -95,99 +205,132 @@ public class VendingMachine {
 	// for testing.
 	double valueInMachine()
 	{		
-		return coinsInMachine.keySet().stream()
-				.map((Coin k) -> k.getValue()*coinsInMachine.get(k))
-				.mapToDouble(d -> d)
-				.sum();
-		
+		return valueOf(coinsInMachine);
 	}
 	// Utility method that returns how much money is in the current pre-purchase
 	// buffer.  Mostly used for testing.
 	double valueInPurchase()
 	{		
-		return coinsInPurchase.keySet().stream()
-				.map((Coin k) -> k.getValue()*coinsInPurchase.get(k))
-				.mapToDouble(d -> d)
-				.sum();
-		
+		return valueOf(coinsInPurchase);
+	}
+	
+	// Adds up a Map of coins in cents, so it's exact and doesn't allocate.
+	static double valueOf(Map<Coin, Integer> coins) {
+		long cents = 0;
+		for (Coin coin: Coin.values)
+			cents += (long) coin.getCents() * coins.getOrDefault(coin, 0);
+		return cents / 100.0;
 	}
 	
 	// Utility method that returns a List of all the ItemRows in the machine that share
 	// the same label.  If there's more than one of them, the machine is broken.
 	List<ItemRow> getLabelsThatMatch(String label) {
-		return machineContents.stream()
+		return labelsThatMatch(machineContents, label);
+	}
+	
+	// Returns the one ItemRow with the label, or null.  Unlike {@code getLabelsThatMatch()}
+	// this doesn't build a List.
+	ItemRow findRow(String label) {
+		List<ItemRow> contents = machineContents;
+		ItemRow found = null;
+		for (int i=0; i<contents.size(); i++) {
+			ItemRow row = contents.get(i);
+			if (row.getLabel().equalsIgnoreCase(label)) {
+				if (found != null)
+					throw new RuntimeException("Corrupt machine");
+				found = row;
+			}
+		}
+		return found;
+	}
+	
+	// Same as {@code getLabelsThatMatch()} for a particular version of the contents.
+	static List<ItemRow> labelsThatMatch(List<ItemRow> contents, String label) {
+		return contents.stream()
 			.filter(i -> i.getLabel().equalsIgnoreCase(label))
 			.collect(Collectors.toList());
 	}
 
 	
-	// Recursive entry point for the {@code makeChange()} method below.  
-	// Tries to use as many of a particular large coin to fill in required amount and then
-	// recurses to the next lower coin to fill in the remainder.  Then iIterates on fewer
-	// and fewer of the big coin until using 0 of them to get to 0.00 remaining.
-	boolean makeChangeHelper(double remaining, Coin coin) {
-		// We have recursed down to a Coin that's too small.  This is a dead end.
-		if (coin == null)
-			return false;
-		
-		// don't use more of the coin than can fit
-		int max = (int) Math.floor(remaining/coin.getValue());	
-
-		// use both the coins in the machine and the purchase buffer to make change
-		max = Math.min(max, coinsInMachine.getOrDefault(coin, 0)  
-					+ coinsInPurchase.getOrDefault(coin, 0));   
+	/**
+	 * Works out how to make change for {@code amount} from the coins in the machine and
+	 * the purchase buffer, without changing either.  This doesn't take the machine's lock,
+	 * so it can run alongside sales; it works from the versions of the coins it picks up,
+	 * and the plan is checked against the current ones when it's committed.
+	 * <p>
+	 * The chosen result in optimal in that it will choose more of a large coin in 
+	 * preference to smaller ones. That gives the machine more flexibility in making 
+	 * change in the future.
+	 * 
+	 * @param amount  Amount of change to make
+	 * @return        The plan.  Check {@code isPossible()} to see if change can be made.
+	 */
+	public ChangePlan planChange(double amount) {
+		return ChangePlan.plan((int) Math.round(amount*100), coinsInMachine, coinsInPurchase);
+	}
+	
+	/**
+	 * Carries out a plan from {@code planChange()}: the planned coins come out of the 
+	 * machine and everything in the purchase buffer goes into it, all in one step.  If 
+	 * the purchase buffer has changed since the plan was made, or the machine no longer
+	 * has the coins, nothing happens.
+	 * 
+	 * @param plan  The plan to carry out
+	 * @return      True if the plan was carried out, false if it wasn't possible
+	 */
+	public boolean commitChange(ChangePlan plan) {
+		synchronized (stateLock) {
+			if (!plan.fits(coinsInMachine, coinsInPurchase))
+				return false;
 
-		// start with a lot of the coin and work your way down to fewer, including 0 of them
-		for (int i=max; i>=0; i--) {						
-			double tmp = subtractDouble(remaining, i*coin.getValue());       
-			
-			// if we have satisfied the remainder or any recurse does it, report success upward
-			if (tmp == 0.00 || makeChangeHelper(tmp, coin.pred())) {  
-				
-				// deduct the used quantity of this coin from the machine
-				if (i>0){
-					coinsInMachine.put(coin, coinsInMachine.getOrDefault(coin, 0)-i);
-					System.out.print("" + i + " " + coin + ", ");
-				}
-				return true;
+			Map<Coin, Integer> next = new HashMap<>(coinsInMachine);
+			for (Coin coin: Coin.values) {
+				int purchased = coinsInPurchase.getOrDefault(coin, 0);
+				int given = plan.getCount(coin);
+				if (purchased != 0 || given != 0)
+					next.put(coin, next.getOrDefault(coin, 0) + purchased - given);
 			}
+			coinsInPurchase = new HashMap<>();
+			coinsInMachine = next;
+			publishState();
+			return true;
 		}
-		
-		// if you fall off the end, then this is a dead end.  Tell parent to go on to
-		// the next iteration
-		return false;
 	}
 	
 	/**
 	 * Generates a configuration of change that satisfies a {@code amount}.  Returns false if it
 	 * can't find any.  If successful, the amounts of each type of coin are deducted from
-	 * the machine on the recursion's way back up.
-	 * <p>
-	 * The chosen result in optimal in that it will choose more of a large coin in 
-	 * preference to smaller ones. That gives the machine more flexibility in making 
-	 * change in the future.
+	 * the machine and the purchase buffer is added to it.  This is just 
+	 * {@code planChange()} followed by {@code commitChange()} under the machine's lock.
 	 * 
 	 * @param amount  Amount of change to make
 	 * @return        True if a combination of change was found
 	 */
 	public boolean makeChange(double amount) {		
-		System.out.print("Change: ");
-		if (makeChangeHelper(amount, Coin.MAX)) {
-			if (amount == 0.00)
-				System.out.print("None");
-			System.out.println();
-			
-			// now that we've deducted what was needed for the refund from the machine,
-			// we put all of the money in the purchase buffer into the machine
-			for (Coin coin: coinsInPurchase.keySet()) {
-				coinsInMachine.put(coin, coinsInMachine.getOrDefault(coin, 0)
-						+ coinsInPurchase.get(coin));
-				coinsInPurchase.put(coin, 0);
-			}
-			return true;
+		return takeChange(amount).isPossible();
+	}
+	
+	// Does the work of makeChange() and hands back the plan, so doLabel() can report how
+	// many candidates the search tried.  Under the lock a possible plan always commits, so
+	// the plan's isPossible() says whether change was made.  The Change event times only
+	// the search and the commit, not the console output.
+	ChangePlan takeChange(double amount) {
+		VendingEvents.Change event = new VendingEvents.Change();
+		ChangePlan plan;
+		
+		synchronized (stateLock) {
+			event.begin();
+			event.amount = amount;
+			plan = ChangePlan.plan((int) Math.round(amount*100), coinsInMachine, coinsInPurchase, changeSearch);
+			event.found = commitChange(plan);
+			event.candidates = plan.getCandidates();
+			event.commit();
 		}
 		
-		return false;
+		System.out.print("Change: ");
+		if (event.found)
+			System.out.println(plan);
+		return plan;
 	}
 	
 	
@@ -198,14 +341,26 @@ public class VendingMachine {
 	 * @return The contents of the machine for testing purposes
 	 */
 	public List<ItemRow> listGoods() {
+		List<ItemRow> contents = machineContents;
 		System.out.format("Vending machine contains:%n%n");
-		if (this.machineContents.size() == 0)
+		if (contents.size() == 0)
 			System.out.println("Empty");
 		else
-			machineContents.stream()
+			contents.stream()
 				.sorted()
 				.forEach(System.out::println);
-		return machineContents;
+		return contents;
+	}
+	
+	
+	/**
+	 * Gives access to the machine's goods by type and price.  The index follows every
+	 * restock and sale, and only holds rows that are in stock.
+	 * 
+	 * @return The index over the machine's contents
+	 */
+	public GoodsIndex getGoodsIndex() {
+		return goodsIndex;
 	}
 	
 	
@@ -224,34 +379,93 @@ public class VendingMachine {
 	 * no action will be taken on the machine contents.
 	 * @param money  Maps Coins to the quantity that there should be in the machined.
 	 * If null, no action will be taken on the machine's money.
+	 * <p>
+	 * The new contents are built off to the side from copies of the ItemRows and then
+	 * published in one step, so purchases and listings that are already running keep
+	 * seeing the version they started with.  Neither {@code goods} nor {@code money} is
+	 * kept by the machine.
+	 * 
 	 * @return       The updated contents of the machine.  For testing purposes.
+	 * @throws IllegalArgumentException  If the machine's state is shared and the new
+	 * contents wouldn't fit in the region.  The machine is left as it was.
 	 */
 	public List<ItemRow> restockMachine(List<ItemRow> goods, Map<Coin, Integer> money) {
-		if (money != null)
-			coinsInMachine = money;   //TODO: should clone
+		VendingEvents.Restock event = new VendingEvents.Restock();
+		event.begin();
+		event.goods = (goods == null) ? 0 : goods.size();
+		event.moneyReplaced = (money != null);
 
-		if (machineContents == null)
-			machineContents = new ArrayList<>();
+		Map<Coin, Integer> newMoney = (money == null) ? null : new HashMap<>(money);
 
-		if (goods == null) {
-			return null;
+		// Build the new version without the lock, and only take it to swap the new version
+		// in.  If a sale published a version meanwhile, build again against that one.  A
+		// busy machine could keep that up forever, so the last try is made under the lock.
+		List<ItemRow> restocked = null;
+		List<String> warnings = new ArrayList<>();
+		for (int attempt=1; restocked == null; attempt++) {
+			boolean last = (attempt >= RESTOCK_ATTEMPTS);
+			List<ItemRow> current = last ? null : machineContents;
+			List<ItemRow> next = last ? null : restockedVersion(current, goods, warnings);
+			synchronized (stateLock) {
+				if (last) {
+					current = machineContents;
+					next = restockedVersion(current, goods, warnings);
+				}
+				if (machineContents == current) {
+					if (sharedState != null)
+						SharedMachineState.checkRows(next);
+					goodsIndex.update(current, next);
+					machineContents = next;
+					if (newMoney != null)
+						coinsInMachine = newMoney;
+					publishState();
+					restocked = next;
+				}
+			}
+			if (restocked == null) {
+				event.rebuilt = true;
+				warnings.clear();
+			}
+		}
+		warnings.forEach(System.out::println);
+		event.rows = restocked.size();
+		event.commit();
+
+		return (goods == null) ? null : restocked;
+	}
+	
+	// Builds the version of the contents that results from adding {@code goods} to 
+	// {@code current}.  Doesn't modify either one.
+	static List<ItemRow> restockedVersion(List<ItemRow> current, List<ItemRow> goods, 
+			List<String> warnings) {
+		if (goods == null)
+			return current;
+
+		// where each label is in the new version, so each of the goods is one lookup
+		List<ItemRow> next = new ArrayList<>(current);
+		Map<String, Integer> rowOf = new HashMap<>();
+		for (int i=0; i<next.size(); i++) {
+			if (rowOf.put(next.get(i).getLabel().toLowerCase(), i) != null)
+				throw new RuntimeException("Corrupt machine");
 		}
+		
 		for(ItemRow itemc: goods) {
-			List<ItemRow> matches = getLabelsThatMatch(itemc.getLabel());
-			if (matches.size() == 0) {
-				machineContents.add(itemc);  	//TODO: should clone
-			} else if (matches.size() == 1){
-				if (itemc.getItem().equals(matches.get(0).getItem()))
-					matches.get(0).count += itemc.getCount();
+			String key = itemc.getLabel().toLowerCase();
+			Integer i = rowOf.get(key);
+			if (i == null) {
+				rowOf.put(key, next.size());
+				next.add(new ItemRow(itemc, itemc.getCount()));
+			} else {
+				ItemRow match = next.get(i);
+				if (itemc.getItem().equals(match.getItem()))
+					next.set(i, new ItemRow(match, match.getCount() + itemc.getCount()));
 				else
-					System.out.println("Warning: " + itemc.getLabel()
-						+ " already contins " + matches.get(0).getItem().getName()
+					warnings.add("Warning: " + itemc.getLabel()
+						+ " already contins " + match.getItem().getName()
 						+ ".  Can't put in " + itemc.getItem().getName());
-			} else {
-				throw new RuntimeException("Corrupt machine");
 			}
 		}
-		return machineContents;
+		return Collections.unmodifiableList(next);
 	}
 	
 	
@@ -262,10 +476,28 @@ public class VendingMachine {
 	 * @return       The total now in the machine.  For testing purposes.
 	 */
 	public double doCoin(Coin coin) {
-		coinsInPurchase.merge(coin, 1, (current, valnew) -> current+1);
+		return doCoin(coin, new VendResult()).getAmount();
+	}
+	
+	/**
+	 * Process one coin inserted into the machine, reporting into a VendResult supplied
+	 * by the caller.
+	 * 
+	 * @param coin    The coin to add
+	 * @param result  Where to put the result
+	 * @return        {@code result}, with outcome {@code CREDITED} and the credit now in 
+	 * the machine
+	 */
+	public VendResult doCoin(Coin coin, VendResult result) {
+		synchronized (stateLock) {
+			Map<Coin, Integer> next = new HashMap<>(coinsInPurchase);
+			next.merge(coin, 1, (current, valnew) -> current+1);
+			coinsInPurchase = next;
 		
-		System.out.format("Adding credit: $%.2f%n", coin.getValue());
-		return valueInPurchase();
+			System.out.format("Adding credit: $%.2f%n", coin.getValue());
+			publishState();
+			return result.set(VendResult.Outcome.CREDITED, valueInPurchase(), 0.00, null);
+		}
 	}
 	
 	
@@ -275,19 +507,55 @@ public class VendingMachine {
 	 * @return The total refunded.  For testing purposes.
 	 */
 	public double doRefund() {
-		double tmp = valueInPurchase();
-		System.out.format("Refunding: %.2f%n", tmp);
-		coinsInPurchase = new HashMap<>();
-		return tmp;
+		return doRefund(new VendResult()).getAmount();
+	}
+	
+	/**
+	 * Refunds all Coins in the purchase buffer, reporting into a VendResult supplied by
+	 * the caller.  Clears the purchase buffer.
+	 * 
+	 * @param result  Where to put the result
+	 * @return        {@code result}, with outcome {@code REFUNDED} and the total refunded
+	 */
+	public VendResult doRefund(VendResult result) {
+		VendingEvents.Refund event = new VendingEvents.Refund();
+		event.begin();
+		double tmp;
+		synchronized (stateLock) {
+			tmp = valueInPurchase();
+			System.out.format("Refunding: %.2f%n", tmp);
+			coinsInPurchase = new HashMap<>();
+			publishState();
+		}
+		event.amount = tmp;
+		event.commit();
+		return result.set(VendResult.Outcome.REFUNDED, tmp, 0.00, null);
 	}
 	
 	
-	// Actually vend item.
+	// Actually vend item.  Publishes a new version of the contents with one less in the
+	// row that has {@code ir}'s label, or without the row if that was the last one.
 	Item vendItem(ItemRow ir) {		
 		System.out.println("Vending: " + ir.getItem());
 		
-		if (--ir.count <= 0) {
-			machineContents.remove(ir);
+		synchronized (stateLock) {
+			List<ItemRow> next = new ArrayList<>(machineContents);
+			for (int i=0; i<next.size(); i++) {
+				ItemRow row = next.get(i);
+				if (row.getLabel().equalsIgnoreCase(ir.getLabel())) {
+					ItemRow after = null;
+					if (row.getCount() <= 1) {
+						next.remove(i);
+					} else {
+						after = new ItemRow(row, row.getCount()-1);
+						next.set(i, after);
+					}
+					goodsIndex.update(row, after);
+					break;
+				}
+			}
+			machineContents = Collections.unmodifiableList(next);
+			publishState();
 		}
 		
 		return ir.getItem();
@@ -303,30 +571,68 @@ public class VendingMachine {
 	 * the price is too high, the extra amount needed; otherwise null.
 	 */
 	public Object doLabel(String label) {
- 		List<ItemRow> matches = getLabelsThatMatch(label);
+		VendResult result = doLabel(label, new VendResult());
+		switch (result.getOutcome()) {
+		case VENDED:
+			return result.getItem();
+		case INSUFFICIENT_FUNDS:
+			return result.getAmount();
+		default:
+			return null;
+		}
+	}
+	
+	/**
+	 * Same as {@code doLabel(String)}, but reports what happened in a VendResult supplied 
+	 * by the caller instead of an Object that has to be sorted out with {@code instanceof}.
+	 * 
+	 * @param label   The label of the Item we wish to purchase
+	 * @param result  Where to put the result
+	 * @return        {@code result}, filled in.  For {@code VENDED} the amount is the price 
+	 * and there's an Item and change; for {@code INSUFFICIENT_FUNDS} the amount is how much
+	 * more is needed; for {@code CANNOT_MAKE_CHANGE} the amount is the change needed.
+	 */
+	public VendResult doLabel(String label, VendResult result) {
+		VendingEvents.Vend event = new VendingEvents.Vend();
+		event.begin();
+		event.label = label;
+		result.set(null, 0.00, 0.00, null);
+		
+		// hold the contents still from lookup through vending
+		synchronized (stateLock) {
+			try {
+				ItemRow ic = findRow(label);
+				if (ic == null)
+					return result.set(VendResult.Outcome.NO_SUCH_LABEL, 0.00, 0.00, null);
 				
- 		if (matches.size() == 1) {
-			ItemRow ic = matches.get(0);
-			//@ have to do this because subtraction on double isn't stable
-			double deficit = subtractDouble(valueInPurchase(), ic.getItem().getPrice()); 
-			if (deficit >= 0.00) {
-				if (makeChange(deficit)) {
-					vendItem(ic);
-					return ic.getItem();
+				event.price = ic.getItem().getPrice();
+				event.credit = valueInPurchase();
+				//@ have to do this because subtraction on double isn't stable
+				double deficit = subtractDouble(event.credit, ic.getItem().getPrice()); 
+				if (deficit >= 0.00) {
+					event.change = deficit;
+					ChangePlan plan = takeChange(deficit);
+					event.candidates = plan.getCandidates();
+					if (plan.isPossible()) {
+						vendItem(ic);
+						return result.set(VendResult.Outcome.VENDED, ic.getItem().getPrice(), deficit, ic.getItem());
+					} else {
+						System.out.println("Machine can not make change with the cash on hand.  Insert more money or ask for refund");
+						return result.set(VendResult.Outcome.CANNOT_MAKE_CHANGE, deficit, 0.00, null);
+					}
 				} else {
-					System.out.println("Machine can not make change with the cash on hand.  Insert more money or ask for refund");
-					return null;
+					System.out.format("You need $%.2f more to buy item in %s%n", -deficit, label);
+					return result.set(VendResult.Outcome.INSUFFICIENT_FUNDS, -deficit, 0.00, null);
 				}
-			} else {
-				System.out.format("You need $%.2f more to buy item in %s%n", -deficit, label);
-				return -deficit;
+			} finally {
+				// a corrupt machine throws before there's an outcome
+				event.outcome = (result.getOutcome() == null) ? "CORRUPT_MACHINE" : result.getOutcome().name();
+				event.commit();
 			}
-		} else if (matches.size() > 1){
-			throw new RuntimeException("Corrupt machine");
 		}
- 		return null;
 	}
 
+
 	
 	/**
 	 * Main loop for exercising the functionality of the VendingMachine.  Displays 
@@ -334,6 +640,7 @@ public class VendingMachine {
 	 */
 	public void mainLoop() {
 		BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+		CommandParser parser = new CommandParser();
 		String line;
 		
 		try {
@@ -346,21 +653,28 @@ public class VendingMachine {
 				System.out.format("Credit=%.2f: Enter type of cash, label of item, refund, restock, or quit: ", valueInPurchase());
 
 				// read a command
-				if ((line=reader.readLine()) == null || line.trim().equalsIgnoreCase("quit"))
+				if ((line=reader.readLine()) == null)
 					break;
-				line = line.trim().toLowerCase();
 				
 				// Look it up
-				if (Coin.isCoin(line)) {
-					doCoin(Coin.toCoin(line));
-				} else if (line.equals("refund")) {
+				Command command = parser.parse(line, machineContents);
+				if (command == Command.QUIT)
+					break;
+				switch (command) {
+				case COIN:
+					doCoin(parser.getCoin());
+					break;
+				case REFUND:
 					doRefund();
-				} else if (line.equals("restock")) {
+					break;
+				case RESTOCK:
 					restockMachine(retrieveRestockGoods(), retrieveRestockMoney());
-				} else if (getLabelsThatMatch(line).size() > 0) {
-					doLabel(line);
-				} else {
-					System.out.println("Unrecognized item label: " + line);
+					break;
+				case LABEL:
+					doLabel(parser.getRow().getLabel());
+					break;
+				default:
+					System.out.println("Unrecognized item label: " + line.trim().toLowerCase());
 				}
 				System.out.println();
 			}
@@ -2,9 +2,28 @@ package com.heyho.demo.vendingmachine;
 
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -72,6 +91,30 @@ public class VendingMachineTest {
 		assertNull(Coin.toCoin("DOLLARBILLL"), "Coin.toCoin() bad input fails");
 	}
 	
+	@Test
+	void testCommandParser() {
+		CommandParser parser = new CommandParser();
+		ItemRow ic1 = new ItemRow("Name", "Type", 0.25, 1, "@1");
+		ItemRow ic2 = new ItemRow("Name2", "Type", 0.25, 1, "Q1");
+		vm.restockMachine(Arrays.asList(ic1, ic2), null);
+
+		assertEquals(CommandParser.Command.COIN, parser.parse("  Quarter ", vm.machineContents), "CommandParser coin fails");
+		assertEquals(Coin.QUARTER, parser.getCoin(), "CommandParser getCoin() fails");
+		assertEquals(CommandParser.Command.REFUND, parser.parse("REFUND", vm.machineContents), "CommandParser refund fails");
+		assertEquals(CommandParser.Command.RESTOCK, parser.parse("restock", vm.machineContents), "CommandParser restock fails");
+		assertEquals(CommandParser.Command.QUIT, parser.parse("quit\n", vm.machineContents), "CommandParser quit fails");
+		assertEquals(CommandParser.Command.LABEL, parser.parse("q1", vm.machineContents), "CommandParser label fails");
+		assertEquals("Q1", parser.getRow().getLabel(), "CommandParser getRow() fails");
+		assertNull(parser.getCoin(), "CommandParser getCoin() after label fails");
+		assertEquals(CommandParser.Command.UNKNOWN, parser.parse("quart", vm.machineContents), "CommandParser prefix is unknown fails");
+		assertEquals(CommandParser.Command.UNKNOWN, parser.parse("@12", vm.machineContents), "CommandParser longer label is unknown fails");
+		assertEquals(CommandParser.Command.UNKNOWN, parser.parse("   ", vm.machineContents), "CommandParser blank is unknown fails");
+
+		vm.doCoin(Coin.QUARTER);
+		vm.doLabel("@1");
+		assertEquals(CommandParser.Command.UNKNOWN, parser.parse("@1", vm.machineContents), "CommandParser sees sold out row fails");
+	}
+
 	@Test
 	void testItemClass() {		
 		Item item = new Item("Name", "Type", 0.75);
@@ -195,6 +238,49 @@ public class VendingMachineTest {
 		assertEquals(2.00, vm.valueInPurchase(), "makeChange() purchase not reduced fails 5");
 		vm.coinsInPurchase = new HashMap<>();  // have to wipe money left over in the purchase
 	}
+
+	@Test
+	void testChangePlan() {
+		vm.restockMachine(null, vm.retrieveRestockMoney(1));
+		vm.doCoin(Coin.QUARTER);
+		vm.doCoin(Coin.QUARTER);
+		double before = vm.valueInMachine();
+		
+		ChangePlan plan = vm.planChange(0.40);
+		assertTrue(plan.isPossible(), "planChange() finds $0.40 fails");
+		assertEquals(1, plan.getCount(Coin.QUARTER), "planChange() uses largest coins first fails 1");
+		assertEquals(1, plan.getCount(Coin.DIME), "planChange() uses largest coins first fails 2");
+		assertEquals(1, plan.getCount(Coin.NICKLE), "planChange() uses largest coins first fails 3");
+		assertEquals(before, vm.valueInMachine(), "planChange() doesn't change the machine fails");
+		assertEquals(0.50, vm.valueInPurchase(), "planChange() doesn't change the purchase fails");
+		assertEquals(plan, vm.planChange(0.40), "planChange() same coins same plan fails");
+		assertFalse(vm.planChange(0.03).isPossible(), "planChange() can't make $0.03 fails");
+		assertFalse(vm.commitChange(vm.planChange(0.03)), "commitChange() rejects impossible plan fails");
+
+		// take the coins away and the plan no longer fits
+		vm.restockMachine(null, vm.retrieveRestockMoney(0));
+		assertFalse(vm.commitChange(plan), "commitChange() rejects stale plan fails");
+		assertEquals(0.50, vm.valueInPurchase(), "commitChange() stale plan leaves purchase fails");
+		
+		// a refund or another coin changes the credit the plan was made for
+		vm.restockMachine(null, vm.retrieveRestockMoney(1));
+		ChangePlan refunded = vm.planChange(0.40);
+		vm.doRefund();
+		before = vm.valueInMachine();
+		assertFalse(vm.commitChange(refunded), "commitChange() rejects plan after refund fails");
+		assertEquals(before, vm.valueInMachine(), "commitChange() plan after refund leaves machine fails");
+		vm.doCoin(Coin.QUARTER);
+		ChangePlan inserted = vm.planChange(0.15);
+		vm.doCoin(Coin.QUARTER);
+		assertFalse(vm.commitChange(inserted), "commitChange() rejects plan after coin fails");
+		assertEquals(0.50, vm.valueInPurchase(), "commitChange() plan after coin leaves purchase fails");
+		assertNotEquals(inserted, vm.planChange(0.15), "planChange() different purchase different plan fails");
+		
+		before = vm.valueInMachine();
+		assertTrue(vm.commitChange(plan), "commitChange() fails");
+		assertEquals(0.10, vm.subtractDouble(vm.valueInMachine(), before), "commitChange() machine gains purchase less change fails");
+		assertEquals(0.00, vm.valueInPurchase(), "commitChange() empties purchase fails");
+	}
 	
 	@Test
 	void testListGoods() {
@@ -237,6 +323,89 @@ public class VendingMachineTest {
 		assertEquals(ic1.getItem(), (Item) item, "restockMachine() restocked correct item fails");
 		assertEquals(1, vm.machineContents.size()-before, "restockMachine() mechine contents size correct after fails");
 	}
+
+	@Test
+	void testRestockCopyOnWrite() {
+		ItemRow ic1 = new ItemRow("Name", "Type", 0.25, 1, "@1");
+		vm.restockMachine(Arrays.asList(ic1), vm.retrieveRestockMoney(1));
+		List<ItemRow> version = vm.listGoods();
+		
+		vm.restockMachine(Arrays.asList(new ItemRow("Name", "Type", 0.25, 2, "@1"),
+				new ItemRow("Name2", "Type", 0.50, 1, "@2")), null);
+		assertEquals(1, version.size(), "restockMachine() old version keeps its rows fails");
+		assertEquals(1, version.get(0).getCount(), "restockMachine() old version keeps its counts fails");
+		assertEquals(1, ic1.getCount(), "restockMachine() doesn't modify the goods passed in fails");
+		assertEquals(3, vm.getLabelsThatMatch("@1").get(0).getCount(), "restockMachine() new version adds counts fails");
+		assertThrows(UnsupportedOperationException.class, () -> vm.machineContents.clear(),
+				"restockMachine() published version can't be modified fails");
+
+		vm.doCoin(Coin.QUARTER);
+		version = vm.machineContents;
+		vm.doLabel("@1");
+		assertEquals(3, version.get(0).getCount(), "doLabel() old version keeps its counts fails");
+		assertEquals(2, vm.getLabelsThatMatch("@1").get(0).getCount(), "doLabel() new version has one less fails");
+
+		// a sale during every lock-free build can't hold a restock off for ever
+		vm.restockMachine(Arrays.asList(new ItemRow("Name3", "Type", 0.25, 10, "@3")), null);
+		List<ItemRow> more = Arrays.asList(new ItemRow("Name", "Type", 0.25, 1, "@1"));
+		int builds[] = new int[1];
+		List<ItemRow> busy = new AbstractList<ItemRow>() {
+			@Override
+			public ItemRow get(int index) {
+				return more.get(index);
+			}
+
+			@Override
+			public int size() {
+				return more.size();
+			}
+
+			@Override
+			public Iterator<ItemRow> iterator() {
+				builds[0]++;
+				if (!Thread.holdsLock(vm.stateLock))
+					vm.vendItem(vm.getLabelsThatMatch("@3").get(0));
+				return more.iterator();
+			}
+		};
+		vm.restockMachine(busy, null);
+		assertEquals(VendingMachine.RESTOCK_ATTEMPTS, builds[0], "restockMachine() gives up building without the lock fails");
+		assertEquals(3, vm.getLabelsThatMatch("@1").get(0).getCount(), "restockMachine() under sales adds counts fails");
+		assertEquals(10 - (VendingMachine.RESTOCK_ATTEMPTS-1), vm.getLabelsThatMatch("@3").get(0).getCount(), "restockMachine() under sales keeps sales fails");
+	}
+
+	@Test
+	void testGoodsIndex() {
+		GoodsIndex index = vm.getGoodsIndex();
+		assertNull(index.cheapest("Peanut"), "GoodsIndex empty machine has no cheapest fails");
+
+		vm.restockMachine(vm.retrieveRestockGoods(), vm.retrieveRestockMoney());
+		assertEquals("B2", index.cheapest("peanut").getLabel(), "GoodsIndex cheapest() fails");
+		assertEquals(Arrays.asList("B2", "C1", "A1"), labels(index.under(1.00)), "GoodsIndex under() fails");
+		assertEquals(Arrays.asList("A1", "B1"), labels(index.between(0.75, 1.25)), "GoodsIndex between() fails");
+		assertEquals(Arrays.asList("B2", "B1"), labels(index.ofType("Peanut")), "GoodsIndex ofType() fails");
+		assertEquals(3, index.getTypes().size(), "GoodsIndex getTypes() fails");
+
+		// sell out B2 and the index should fall back to the next Peanut
+		for (int i=0; i<3; i++) {
+			vm.doCoin(Coin.HALFDOLLAR);
+			vm.doLabel("B2");
+		}
+		assertEquals("B1", index.cheapest("Peanut").getLabel(), "GoodsIndex follows sales fails");
+		assertEquals(Arrays.asList("C1", "A1"), labels(index.under(1.00)), "GoodsIndex drops sold out rows fails");
+
+		vm.doCoin(Coin.DOLLARCOIN);
+		vm.doLabel("A1");
+		assertEquals(2, index.ofType("Chocoate").get(0).getCount(), "GoodsIndex holds current counts fails");
+		
+		vm.restockMachine(vm.retrieveRestockGoods(), null);
+		assertEquals("B2", index.cheapest("Peanut").getLabel(), "GoodsIndex follows restock fails");
+		assertEquals(5, index.between(0.00, 10.00).size(), "GoodsIndex has no stale rows fails");
+	}
+
+	static List<String> labels(List<ItemRow> rows) {
+		return rows.stream().map(ItemRow::getLabel).collect(Collectors.toList());
+	}
 	
 	@Test
 	void testDoLabel() {
@@ -279,6 +448,312 @@ public class VendingMachineTest {
 		assertEquals(0.55, vm.valueInPurchase(), "doLabel() purchase contains correct money after can't make change fails");
 	}
 
+
+	@Test
+	void testSharedMachineState() throws IOException {
+		Path path = Files.createTempFile("vendingmachine", ".state");
+		try (SharedMachineState writer = SharedMachineState.create(path);
+				SharedMachineState reader = SharedMachineState.open(path)) {
+			ItemRow ic1 = new ItemRow("Name", "Type", 0.25, 2, "@1");
+			vm.restockMachine(Arrays.asList(ic1), vm.retrieveRestockMoney(2));
+			vm.shareState(writer);
+
+			SharedMachineState.Snapshot snap = reader.snapshot();
+			assertEquals(2, snap.getCoinsInMachine(Coin.DIME), "SharedMachineState coins in machine fails");
+			assertEquals(2, snap.getCount("@1"), "SharedMachineState row count fails");
+			assertEquals(0.00, snap.getCredit(), "SharedMachineState starts with no credit fails");
+
+			vm.doCoin(Coin.QUARTER);
+			assertTrue(reader.tryRead(snap), "SharedMachineState tryRead() when idle fails");
+			assertEquals(0.25, snap.getCredit(), "SharedMachineState credit follows doCoin() fails");
+
+			long version = snap.getVersion();
+			vm.doLabel("@1");
+			snap = reader.snapshot();
+			assertTrue(snap.getVersion() > version, "SharedMachineState version advances fails");
+			assertEquals(1, snap.getCount("@1"), "SharedMachineState row count follows doLabel() fails");
+			assertEquals(3, snap.getCoinsInMachine(Coin.QUARTER), "SharedMachineState coins follow doLabel() fails");
+			assertEquals(0.00, snap.getCredit(), "SharedMachineState credit cleared by doLabel() fails");
+			
+			assertThrows(IllegalStateException.class, () -> reader.publish(null, null, null),
+					"SharedMachineState reader can't publish fails");
+
+			// a label that doesn't fit is turned away instead of being cut down
+			List<ItemRow> tooLong = Arrays.asList(new ItemRow("Name", "Type", 0.25, 9, "SNACKROW2"));
+			assertThrows(IllegalArgumentException.class, () -> vm.restockMachine(tooLong, null),
+					"SharedMachineState rejects long label fails");
+			assertTrue(vm.getLabelsThatMatch("SNACKROW2").isEmpty(), "SharedMachineState rejected restock leaves machine fails");
+			assertEquals(1, reader.snapshot().getCount("@1"), "SharedMachineState rejected restock leaves region fails");
+			vm.shareState(null);
+			vm.restockMachine(tooLong, null);
+			assertThrows(IllegalArgumentException.class, () -> vm.shareState(writer),
+					"SharedMachineState shareState() rejects long label fails");
+			vm.shareState(null);
+		}
+		
+		// taking over a file doesn't let readers see what the last writer left behind
+		try (SharedMachineState writer = SharedMachineState.create(path);
+				SharedMachineState reader = SharedMachineState.open(path)) {
+			SharedMachineState.Snapshot snap = reader.snapshot();
+			assertEquals(0, snap.getVersion(), "SharedMachineState create() version fails");
+			assertEquals(0, snap.getRowCount(), "SharedMachineState create() clears rows fails");
+			assertEquals(0, snap.getCount("@1"), "SharedMachineState create() clears counts fails");
+			assertEquals(0, snap.getCoinsInMachine(Coin.QUARTER), "SharedMachineState create() clears coins fails");
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+
+	@Test
+	void testMachineStateStore() throws IOException {
+		MachineStateStore store = new MachineStateStore(3, 8);
+		store.restock(1, vm.retrieveRestockGoods(), vm.retrieveRestockMoney(0));
+		vm.restockMachine(vm.retrieveRestockGoods(), vm.retrieveRestockMoney(0));
+		int a1 = store.labelId("a1");
+		
+		assertEquals(3, store.getCount(1, a1), "MachineStateStore restock() count fails");
+		assertEquals(0, store.getCount(0, a1), "MachineStateStore other machines untouched fails");
+		Item item = store.getItem(1, a1);
+		assertEquals(vm.retrieveRestockGoods().get(0).getItem(), item, "MachineStateStore getItem() fails");
+		List<ItemRow> mismatch = Arrays.asList(new ItemRow("Other", item.getType(), item.getPrice(), 5, "A1"));
+		assertEquals(1, store.restock(1, mismatch, null), "MachineStateStore restock() rejects mismatch fails");
+		assertEquals(3, store.getCount(1, a1), "MachineStateStore restock() mismatch count fails");
+		assertEquals(item, store.getItem(1, a1), "MachineStateStore restock() mismatch item fails");
+		int labels = store.getLabelCount();
+		assertEquals(-1, store.labelId("Z9"), "MachineStateStore labelId() unknown label fails");
+		assertEquals(VendResult.Outcome.NO_SUCH_LABEL, store.vend(1, store.labelId("Z9")), "MachineStateStore vend() missing label fails");
+		assertEquals(0, store.getCount(1, store.labelId("Z9")), "MachineStateStore getCount() missing label fails");
+		assertEquals(labels, store.getLabelCount(), "MachineStateStore lookups don't add labels fails");
+		assertEquals(VendResult.Outcome.INSUFFICIENT_FUNDS, store.vend(1, a1), "MachineStateStore vend() without money fails");
+
+		// same purchase as the heap machine, including the change
+		for (Coin coin: Arrays.asList(Coin.HALFDOLLAR, Coin.QUARTER, Coin.DIME)) {
+			store.insertCoin(1, coin);
+			vm.doCoin(coin);
+		}
+		assertEquals(85, store.getCredit(1), "MachineStateStore getCredit() fails");
+		assertEquals(VendResult.Outcome.VENDED, store.vend(1, a1), "MachineStateStore vend() fails");
+		assertTrue(vm.doLabel("A1") instanceof Item, "MachineStateStore heap machine vends fails");
+		assertEquals(Math.round(vm.valueInMachine()*100), store.getValueInMachine(1), "MachineStateStore value matches heap machine fails");
+		assertEquals(0, store.getCredit(1), "MachineStateStore purchase emptied fails");
+		assertEquals(2, store.getCount(1, a1), "MachineStateStore vend() count fails");
+
+		store.insertCoin(1, Coin.QUARTER);
+		store.insertCoin(1, Coin.DIME);
+		store.insertCoin(1, Coin.DIME);
+		store.insertCoin(1, Coin.DIME);
+		assertEquals(VendResult.Outcome.CANNOT_MAKE_CHANGE, store.vend(1, store.labelId("B2")), "MachineStateStore vend() can't make change fails");
+		assertEquals(55, store.refund(1), "MachineStateStore refund() fails");
+
+		// a restock that doesn't fit changes nothing, not even the money
+		List<ItemRow> tooMany = new ArrayList<>();
+		for (int i=0; i<9; i++)
+			tooMany.add(new ItemRow("Name", "Type", 0.25, 1, "E" + i));
+		int value = store.getValueInMachine(0);
+		assertThrows(IllegalStateException.class, () -> store.restock(0, tooMany, vm.retrieveRestockMoney(5)),
+				"MachineStateStore restock() without room fails");
+		assertEquals(value, store.getValueInMachine(0), "MachineStateStore restock() without room leaves money fails");
+		assertEquals(-1, store.labelId("E0"), "MachineStateStore restock() without room adds no labels fails");
+
+		List<ItemRow> unnamed = Arrays.asList(new ItemRow(null, "T", 0.25, 1, "D1"));
+		store.restock(2, unnamed, null);
+
+		Path path = Files.createTempFile("vendingmachine", ".dump");
+		try {
+			store.dump(path);
+			MachineStateStore loaded = MachineStateStore.load(path);
+			assertEquals(3, loaded.getMachines(), "MachineStateStore load() machines fails");
+			assertEquals(a1, loaded.labelId("A1"), "MachineStateStore load() labels fails");
+			assertEquals(store.getLabelCount(), loaded.getLabelCount(), "MachineStateStore load() label count fails");
+			assertEquals(2, loaded.getCount(1, a1), "MachineStateStore load() counts fails");
+			assertEquals(item, loaded.getItem(1, a1), "MachineStateStore load() products fails");
+			assertEquals(unnamed.get(0).getItem(), loaded.getItem(2, loaded.labelId("D1")), "MachineStateStore load() null name fails");
+			assertEquals(store.getValueInMachine(1), loaded.getValueInMachine(1), "MachineStateStore load() coins fails");
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+
+	@Test
+	void testVendingEvents() throws IOException {
+		Path path = Files.createTempFile("vendingmachine", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable(VendingEvents.Vend.class);
+			recording.enable(VendingEvents.Change.class);
+			recording.enable(VendingEvents.Restock.class);
+			recording.enable(VendingEvents.Refund.class);
+			recording.start();
+			
+			vm.restockMachine(vm.retrieveRestockGoods(), vm.retrieveRestockMoney());
+			vm.doCoin(Coin.DOLLARCOIN);
+			vm.doLabel("A1");
+			vm.doCoin(Coin.QUARTER);
+			vm.doLabel("A1");
+			vm.doRefund();
+			
+			recording.stop();
+			recording.dump(path);
+
+			List<RecordedEvent> events = RecordingFile.readAllEvents(path);
+			List<RecordedEvent> vends = events.stream()
+					.filter(e -> e.getEventType().getName().equals("com.heyho.demo.vendingmachine.Vend"))
+					.collect(Collectors.toList());
+			assertEquals(2, vends.size(), "VendingEvents one Vend per doLabel() fails");
+			assertEquals("A1", vends.get(0).getString("label"), "VendingEvents Vend label fails");
+			assertEquals("VENDED", vends.get(0).getString("outcome"), "VendingEvents Vend outcome fails");
+			assertEquals(0.25, vends.get(0).getDouble("change"), "VendingEvents Vend change fails");
+			assertTrue(vends.get(0).getInt("candidates") > 0, "VendingEvents Vend candidates fails");
+			assertEquals("INSUFFICIENT_FUNDS", vends.get(1).getString("outcome"), "VendingEvents Vend short outcome fails");
+			assertEquals(1, count(events, "Change"), "VendingEvents Change fails");
+			RecordedEvent change = events.stream()
+					.filter(e -> e.getEventType().getName().equals("com.heyho.demo.vendingmachine.Change"))
+					.findFirst().get();
+			assertTrue(change.getBoolean("found"), "VendingEvents Change found fails");
+			assertEquals(vends.get(0).getInt("candidates"), change.getInt("candidates"), "VendingEvents Change candidates fails");
+			assertEquals(1, count(events, "Restock"), "VendingEvents Restock fails");
+			assertEquals(1, count(events, "Refund"), "VendingEvents Refund fails");
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	static long count(List<RecordedEvent> events, String name) {
+		return events.stream()
+				.filter(e -> e.getEventType().getName().equals("com.heyho.demo.vendingmachine." + name))
+				.count();
+	}
+
+
+	@Test
+	void testVendResult() {
+		VendResult result = new VendResult();
+		ItemRow ic1 = new ItemRow("Name", "Type", 0.75, 1, "@1");
+		ItemRow ic2 = new ItemRow("Name2", "Type", 0.60, 1, "@2");
+		vm.restockMachine(Arrays.asList(ic1, ic2), vm.retrieveRestockMoney(0));
+
+		assertSame(result, vm.doLabel("@9", result), "doLabel(VendResult) reuses result fails");
+		assertEquals(VendResult.Outcome.NO_SUCH_LABEL, result.getOutcome(), "doLabel(VendResult) no such label fails");
+
+		vm.doCoin(Coin.HALFDOLLAR, result);
+		assertEquals(VendResult.Outcome.CREDITED, result.getOutcome(), "doCoin(VendResult) outcome fails");
+		assertEquals(0.50, result.getAmount(), "doCoin(VendResult) credit fails");
+
+		vm.doLabel("@1", result);
+		assertEquals(VendResult.Outcome.INSUFFICIENT_FUNDS, result.getOutcome(), "doLabel(VendResult) insufficient funds fails");
+		assertEquals(0.25, result.getAmount(), "doLabel(VendResult) amount needed fails");
+		assertNull(result.getItem(), "doLabel(VendResult) nothing vended fails");
+
+		vm.doCoin(Coin.QUARTER, result);
+		vm.doCoin(Coin.QUARTER, result);
+		vm.doLabel("@2", result);
+		assertEquals(VendResult.Outcome.CANNOT_MAKE_CHANGE, result.getOutcome(), "doLabel(VendResult) can't make change fails");
+		assertEquals(0.40, result.getAmount(), "doLabel(VendResult) change needed fails");
+
+		vm.doLabel("@1", result);
+		assertTrue(result.isVended(), "doLabel(VendResult) vended fails");
+		assertEquals(ic1.getItem(), result.getItem(), "doLabel(VendResult) vended item fails");
+		assertEquals(0.75, result.getAmount(), "doLabel(VendResult) price fails");
+		assertEquals(0.25, result.getChange(), "doLabel(VendResult) change fails");
+
+		vm.doCoin(Coin.DIME, result);
+		vm.doRefund(result);
+		assertEquals(VendResult.Outcome.REFUNDED, result.getOutcome(), "doRefund(VendResult) outcome fails");
+		assertEquals(0.10, result.getAmount(), "doRefund(VendResult) amount fails");
+	}
+
+
+	@Test
+	void testCatalogProviders() throws Exception {
+		Path dir = Files.createTempDirectory("vendingmachine");
+		Path file = dir.resolve("lobby.csv");
+		try {
+			Files.write(file, Arrays.asList("# label,name,type,price,count", "A1,Abar,Chocolate,0.75,2", "", "B1,Cbar,Peanut,1.25,4"));
+			FileCatalogProvider files = new FileCatalogProvider(dir);
+			assertEquals(2, files.retrieveGoods("lobby").size(), "FileCatalogProvider reads rows fails");
+			assertEquals(4, files.retrieveGoods("lobby").get(1).getCount(), "FileCatalogProvider reads count fails");
+			assertTrue(files.retrieveGoods("nowhere").isEmpty(), "FileCatalogProvider missing catalog is empty fails");
+
+			// count what reaches the source
+			List<String> asked = new ArrayList<>();
+			CatalogProvider counting = new CatalogProvider() {
+				@Override
+				public List<ItemRow> retrieveGoods(String catalog) {
+					asked.add(catalog);
+					return files.retrieveGoods(catalog);
+				}
+			};
+			AtomicLong now = new AtomicLong();
+			CachingCatalogProvider cache = new CachingCatalogProvider(counting, 2, 1000, now::get);
+
+			List<VendingMachine> machines = new ArrayList<>();
+			for (int i=0; i<3; i++) {
+				VendingMachine m = new VendingMachine();
+				m.setCatalog(cache, "lobby");
+				machines.add(m);
+			}
+			VendingMachine.restockAll(machines);
+			assertEquals(Arrays.asList("lobby"), asked, "restockAll() fetches a shared catalog once fails");
+			assertEquals(2, machines.get(2).getLabelsThatMatch("A1").get(0).getCount(), "restockAll() restocks every machine fails");
+			machines.get(0).restockMachine(machines.get(0).retrieveRestockGoods(), null);
+			assertEquals(2, machines.get(1).getLabelsThatMatch("A1").get(0).getCount(), "restockAll() machines don't share rows fails");
+			assertEquals(1, cache.getHits(), "CachingCatalogProvider hit fails");
+
+			cache.retrieveGoods("x");
+			cache.retrieveGoods("lobby");
+			cache.retrieveGoods("y");		// evicts x
+			assertEquals(2, cache.size(), "CachingCatalogProvider bounded size fails");
+			asked.clear();
+			cache.retrieveGoods("lobby");
+			cache.retrieveGoods("x");
+			assertEquals(Arrays.asList("x"), asked, "CachingCatalogProvider evicts least recently used fails");
+
+			now.addAndGet(1000);
+			asked.clear();
+			assertEquals(2, cache.refresh(), "CachingCatalogProvider refresh() finds stale entries fails");
+			assertEquals(2, asked.size(), "CachingCatalogProvider refresh() refetches fails");
+			asked.clear();
+			cache.retrieveGoods("lobby");
+			assertTrue(asked.isEmpty(), "CachingCatalogProvider refreshed entry is fresh fails");
+
+			// a second caller waits for the fetch that's already going instead of making its own
+			CountDownLatch fetching = new CountDownLatch(1);
+			CountDownLatch release = new CountDownLatch(1);
+			AtomicLong calls = new AtomicLong();
+			CatalogProvider slow = new CatalogProvider() {
+				@Override
+				public List<ItemRow> retrieveGoods(String catalog) {
+					calls.incrementAndGet();
+					fetching.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					return files.retrieveGoods(catalog);
+				}
+			};
+			CachingCatalogProvider coalescing = new CachingCatalogProvider(slow, 2, 1000, now::get);
+			ExecutorService pool = Executors.newFixedThreadPool(2);
+			try {
+				Future<List<ItemRow>> first = pool.submit(() -> coalescing.retrieveGoods("lobby"));
+				assertTrue(fetching.await(5, TimeUnit.SECONDS), "CachingCatalogProvider first fetch starts fails");
+				Future<Map<String, List<ItemRow>>> second = pool.submit(() -> coalescing.retrieveGoods(Arrays.asList("lobby")));
+				for (int i=0; i<500 && coalescing.getMisses() < 2; i++)
+					Thread.sleep(10);
+				release.countDown();
+				assertSame(first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS).get("lobby"), "CachingCatalogProvider waiters share the fetch fails");
+				assertEquals(1, calls.get(), "CachingCatalogProvider coalesces fetches fails");
+			} finally {
+				pool.shutdownNow();
+			}
+		} finally {
+			Files.delete(file);
+			Files.delete(dir);
+		}
+	}
+
 	
 	@Test
 	void testMainLoop() {